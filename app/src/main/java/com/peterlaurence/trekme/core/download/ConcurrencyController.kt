@@ -0,0 +1,132 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.providers.http.TileHttpEngine
+import com.peterlaurence.trekme.core.providers.http.TileResponse
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Adapts the number of tile requests in flight to what the server can take, using an AIMD policy
+ * (additive increase, multiplicative decrease) :
+ *
+ * * Each successful request raises the limit by 1/limit, so the limit grows by one every "round"
+ * * When the latency gets much higher than the no-load latency, the server is queueing our
+ *   requests : the limit is slightly reduced
+ * * Errors reduce the limit a little, and an HTTP 429 or 503 (the server asks us to slow down)
+ *   halves it. A given congestion is only accounted once, so a burst of errors doesn't collapse
+ *   the limit to its minimum.
+ *
+ * Download threads call [acquire] before each request, and [release] right after.
+ */
+class ConcurrencyController(initialLimit: Int, val maxLimit: Int, private val minLimit: Int = 1) {
+    private val lock = ReentrantLock()
+    private val permitAvailable = lock.newCondition()
+
+    private var limit = initialLimit.coerceIn(minLimit, maxLimit).toDouble()
+    private var inFlight = 0
+    private var lastDecreaseNs = 0L
+
+    /* The no-load latency is the minimum latency over the last two windows of samples */
+    private var windowMinLatencyNs = Long.MAX_VALUE
+    private var previousWindowMinLatencyNs = Long.MAX_VALUE
+    private var windowSamples = 0
+
+    val currentLimit: Int
+        get() = lock.withLock { limit.toInt() }
+
+    val currentInFlight: Int
+        get() = lock.withLock { inFlight }
+
+    /**
+     * Blocks until a new request is allowed.
+     */
+    fun acquire() {
+        lock.withLock {
+            while (inFlight >= limit.toInt()) {
+                permitAvailable.await()
+            }
+            inFlight++
+        }
+    }
+
+    /**
+     * Report the outcome of a request.
+     *
+     * @param code The HTTP code of the response, or [TileResponse.NO_RESPONSE]
+     * @param latencyNs The duration of the request
+     */
+    fun release(code: Int, latencyNs: Long) {
+        lock.withLock {
+            inFlight--
+            when {
+                code == 429 || code == 503 -> decrease(THROTTLE_FACTOR)
+                code == TileResponse.NO_RESPONSE || code >= 500 -> decrease(ERROR_FACTOR)
+                code == 200 -> onSuccess(latencyNs)
+                /* Other codes (e.g 404 for a tile out of the layer's extent) tell nothing about the load */
+            }
+            permitAvailable.signalAll()
+        }
+    }
+
+    private fun onSuccess(latencyNs: Long) {
+        updateNoLoadLatency(latencyNs)
+        val noLoadLatencyNs = Math.min(windowMinLatencyNs, previousWindowMinLatencyNs)
+
+        if (latencyNs > noLoadLatencyNs * LATENCY_TOLERANCE) {
+            decrease(QUEUEING_FACTOR)
+        } else {
+            limit = Math.min(maxLimit.toDouble(), limit + 1.0 / limit)
+        }
+    }
+
+    private fun updateNoLoadLatency(latencyNs: Long) {
+        windowMinLatencyNs = Math.min(windowMinLatencyNs, latencyNs)
+        if (++windowSamples == LATENCY_WINDOW) {
+            previousWindowMinLatencyNs = windowMinLatencyNs
+            windowMinLatencyNs = Long.MAX_VALUE
+            windowSamples = 0
+        }
+    }
+
+    /**
+     * Requests which were already in flight when the limit was reduced may fail for the same
+     * reason, so decrease at most once per no-load latency period.
+     */
+    private fun decrease(factor: Double) {
+        val now = System.nanoTime()
+        val noLoadLatencyNs = Math.min(windowMinLatencyNs, previousWindowMinLatencyNs)
+        val period = if (noLoadLatencyNs == Long.MAX_VALUE) DEFAULT_PERIOD_NS else noLoadLatencyNs
+        if (now - lastDecreaseNs < period) return
+
+        lastDecreaseNs = now
+        limit = Math.max(minLimit.toDouble(), limit * factor)
+    }
+
+    companion object {
+        private const val THROTTLE_FACTOR = 0.5
+        private const val ERROR_FACTOR = 0.9
+        private const val QUEUEING_FACTOR = 0.95
+        private const val LATENCY_TOLERANCE = 3
+        private const val LATENCY_WINDOW = 200
+        private const val DEFAULT_PERIOD_NS = 500_000_000L
+
+        /**
+         * The initial and maximum number of requests in flight depend on the source. For
+         * instance, the OSM tile usage policy allows at most two connections.
+         *
+         * The maximum never exceeds the number of connections the [TileHttpEngine] opens to a
+         * host. Above it, requests would only wait for a connection.
+         */
+        fun forSource(source: MapSource,
+                      maxConnections: Int = TileHttpEngine.shared.config.maxConnectionsPerHost): ConcurrencyController {
+            val (initialLimit, maxLimit) = when (source) {
+                MapSource.IGN -> Pair(4, 12)
+                MapSource.USGS -> Pair(4, 16)
+                MapSource.OPEN_STREET_MAP -> Pair(2, 2)
+                MapSource.IGN_SPAIN -> Pair(2, 8)
+            }
+            return ConcurrencyController(initialLimit, Math.min(maxLimit, maxConnections))
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.peterlaurence.trekme.core.download
+
+import android.util.Log
+import com.google.gson.GsonBuilder
+import com.peterlaurence.trekme.core.TrekMeContext
+import com.peterlaurence.trekme.core.map.gson.MapGson.Calibration.CalibrationPoint
+import com.peterlaurence.trekme.core.mapsource.wmts.DownloadSpec
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.TileIndex
+import com.peterlaurence.trekme.core.mapsource.wmts.getTileIndex
+import com.peterlaurence.trekme.util.FileUtils
+import java.io.File
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The on-disk state of a map download, stored inside the folder of the map being downloaded :
+ *
+ * * [JOURNAL_FILE_NAME] holds the [DownloadSpec] and the calibration points
+ * * [COMPLETED_FILE_NAME] holds a bitmap of the completed tiles, indexed with a [TileIndex]
+ *
+ * Completed tiles are flushed to disk every [CHECKPOINT_INTERVAL] tiles, and on [checkpoint]. So
+ * when a download is interrupted, at most a few hundred tiles are downloaded again when resuming.
+ */
+class DownloadJournal private constructor(val dir: File, private val content: JournalContent,
+                                          private val completed: BitSet) {
+    val spec: DownloadSpec
+        get() = content.spec
+    val calibrationPoints: Pair<CalibrationPoint, CalibrationPoint>
+        get() = Pair(content.calibrationPoints[0], content.calibrationPoints[1])
+
+    private val tileIndex: TileIndex = getTileIndex(spec.levelMin, spec.levelMax, spec.point1, spec.point2)
+    private val uncheckedCount = AtomicInteger(0)
+
+    /**
+     * The number of tiles already downloaded.
+     */
+    val completedCount: Long
+        get() = synchronized(completed) { completed.cardinality().toLong() }
+
+    fun isCompleted(tile: Tile): Boolean {
+        val index = tileIndex.indexOf(tile).toInt()
+        return synchronized(completed) { completed.get(index) }
+    }
+
+    /**
+     * Thread-safe. Can be called from download threads.
+     */
+    fun markCompleted(tile: Tile) {
+        val index = tileIndex.indexOf(tile).toInt()
+        synchronized(completed) { completed.set(index) }
+
+        if (uncheckedCount.incrementAndGet() % CHECKPOINT_INTERVAL == 0) {
+            checkpoint()
+        }
+    }
+
+    /**
+     * Persist the completed tiles. The previous bitmap is replaced atomically, so a crash while
+     * writing never loses the previous state.
+     */
+    @Synchronized
+    fun checkpoint() {
+        val bytes = synchronized(completed) { completed.toByteArray() }
+        val tmpFile = File(dir, "$COMPLETED_FILE_NAME.tmp")
+        try {
+            tmpFile.writeBytes(bytes)
+            tmpFile.renameTo(File(dir, COMPLETED_FILE_NAME))
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not save the download journal", e)
+        }
+    }
+
+    /**
+     * Mark the download as finished. It won't be proposed for resume anymore.
+     */
+    fun finish() {
+        content.finished = true
+        save(dir, content)
+        File(dir, COMPLETED_FILE_NAME).delete()
+    }
+
+    private class JournalContent(val spec: DownloadSpec, val calibrationPoints: List<CalibrationPoint>,
+                                 var finished: Boolean = false)
+
+    companion object {
+        const val JOURNAL_FILE_NAME = "download.json"
+        const val COMPLETED_FILE_NAME = "download.bits"
+        private const val CHECKPOINT_INTERVAL = 256
+        private const val TAG = "DownloadJournal"
+        private val gson = GsonBuilder().serializeNulls().setPrettyPrinting().create()
+
+        /**
+         * Create a new journal in the given directory, overwriting any previous one.
+         */
+        fun create(dir: File, spec: DownloadSpec,
+                   calibrationPoints: Pair<CalibrationPoint, CalibrationPoint>): DownloadJournal {
+            val content = JournalContent(spec, calibrationPoints.toList())
+            save(dir, content)
+            return DownloadJournal(dir, content, BitSet()).apply { checkpoint() }
+        }
+
+        /**
+         * Read the journal of a download folder.
+         *
+         * @return the [DownloadJournal], or null if there is none or if it can't be read
+         */
+        fun load(dir: File): DownloadJournal? {
+            return try {
+                val journalFile = File(dir, JOURNAL_FILE_NAME)
+                if (!journalFile.exists()) return null
+                val content = gson.fromJson(FileUtils.getStringFromFile(journalFile), JournalContent::class.java)
+                        ?: return null
+                val completedFile = File(dir, COMPLETED_FILE_NAME)
+                val completed = if (completedFile.exists()) {
+                    BitSet.valueOf(completedFile.readBytes())
+                } else BitSet()
+                DownloadJournal(dir, content, completed)
+            } catch (e: Exception) {
+                Log.e(TAG, "Could not read the download journal of ${dir.name}", e)
+                null
+            }
+        }
+
+        /**
+         * Remove the journal of a download folder, so that the download isn't proposed for resume
+         * anymore. The tiles already downloaded are left as they are.
+         */
+        fun discard(dir: File) {
+            File(dir, JOURNAL_FILE_NAME).delete()
+            File(dir, COMPLETED_FILE_NAME).delete()
+        }
+
+        /**
+         * Get the folders of downloads which were interrupted, the most recent first.
+         */
+        fun findInterrupted(downloadDir: File = TrekMeContext.defaultMapsDownloadDir): List<File> {
+            return (downloadDir.listFiles() ?: arrayOf()).filter {
+                val journalFile = File(it, JOURNAL_FILE_NAME)
+                journalFile.exists() && !isFinished(journalFile)
+            }.sortedByDescending { it.lastModified() }
+        }
+
+        private fun isFinished(journalFile: File): Boolean {
+            return try {
+                gson.fromJson(FileUtils.getStringFromFile(journalFile), JournalContent::class.java)?.finished
+                        ?: true
+            } catch (e: Exception) {
+                true
+            }
+        }
+
+        private fun save(dir: File, content: JournalContent) {
+            try {
+                File(dir, JOURNAL_FILE_NAME).writeText(gson.toJson(content))
+            } catch (e: IOException) {
+                Log.e(TAG, "Could not save the download journal", e)
+            }
+        }
+    }
+}
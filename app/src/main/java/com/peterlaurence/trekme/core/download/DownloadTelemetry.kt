@@ -0,0 +1,185 @@
+package com.peterlaurence.trekme.core.download
+
+import android.util.Log
+import com.google.gson.GsonBuilder
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.providers.http.TileResponse
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * The steps of the download of a tile, which are timed separately.
+ */
+enum class TilePhase {
+    /* Opening the connection, or getting one from the pool */
+    CONNECT,
+    /* From the request until the status line is received */
+    FIRST_BYTE,
+    /* Reading the body */
+    BODY,
+    /* Checking the image */
+    DECODE,
+    /* Writing the tile to storage */
+    WRITE
+}
+
+/**
+ * A histogram of durations with logarithmic buckets : four buckets per power of two of
+ * microseconds, so the relative error of a percentile is at most 25 %. Recording is lock-free and
+ * doesn't allocate.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val totalNs = AtomicLong()
+    private val maxNs = AtomicLong()
+
+    fun record(durationNs: Long) {
+        counts.incrementAndGet(bucketOf(durationNs))
+        totalNs.addAndGet(durationNs)
+        while (true) {
+            val max = maxNs.get()
+            if (durationNs <= max || maxNs.compareAndSet(max, durationNs)) break
+        }
+    }
+
+    fun snapshot(): HistogramSnapshot {
+        val values = LongArray(BUCKET_COUNT) { counts.get(it) }
+        val count = values.sum()
+        val meanMs = if (count == 0L) 0.0 else totalNs.get() / 1e6 / count
+        return HistogramSnapshot(count, meanMs, percentile(values, count, 0.5),
+                percentile(values, count, 0.9), percentile(values, count, 0.99), maxNs.get() / 1e6)
+    }
+
+    private fun percentile(values: LongArray, count: Long, fraction: Double): Double {
+        if (count == 0L) return 0.0
+        val rank = Math.ceil(count * fraction).toLong()
+        var seen = 0L
+        for (i in values.indices) {
+            seen += values[i]
+            if (seen >= rank) return upperBoundUs(i) / 1000.0
+        }
+        return upperBoundUs(BUCKET_COUNT - 1) / 1000.0
+    }
+
+    companion object {
+        private const val MAX_EXPONENT = 40
+        private const val BUCKET_COUNT = (MAX_EXPONENT + 1) * 4
+
+        private fun bucketOf(durationNs: Long): Int {
+            val us = Math.max(1L, durationNs / 1000)
+            val exponent = Math.min(MAX_EXPONENT, 63 - java.lang.Long.numberOfLeadingZeros(us))
+            /* The two bits following the leading one */
+            val sub = ((us shl 2) ushr exponent).toInt() and 3
+            return exponent * 4 + sub
+        }
+
+        private fun upperBoundUs(bucket: Int): Double {
+            val exponent = bucket / 4
+            val sub = bucket % 4
+            return (5 + sub) * Math.pow(2.0, exponent.toDouble()) / 4
+        }
+    }
+}
+
+/**
+ * @param count The number of recorded durations
+ * @param p50Ms The median, in milliseconds. Like the other percentiles, it is an upper bound.
+ */
+data class HistogramSnapshot(val count: Long, val meanMs: Double, val p50Ms: Double, val p90Ms: Double,
+                             val p99Ms: Double, val maxMs: Double)
+
+/**
+ * The state of a download at a given time.
+ *
+ * @param inFlight The number of requests in flight
+ * @param concurrencyLimit The current limit of the [ConcurrencyController]
+ */
+data class TelemetrySnapshot(val source: MapSource, val elapsedSeconds: Double, val tiles: Long,
+                             val bytes: Long, val tilesPerSecond: Double, val bytesPerSecond: Double,
+                             val errors: Map<TileErrorClass, Long>, val inFlight: Int,
+                             val concurrencyLimit: Int, val latencies: Map<TilePhase, HistogramSnapshot>)
+
+/**
+ * Instrumentation of a download : a [LatencyHistogram] for each [TilePhase], throughput, errors by
+ * [TileErrorClass] and concurrency. Everything is recorded without locking, so download threads
+ * can record each tile.
+ *
+ * It tells whether a slow download is limited by the network (connect), the server (first byte),
+ * the bandwidth (body) or the storage (write).
+ *
+ * The telemetry of the last download of each [MapSource] can be retrieved with [of].
+ */
+class DownloadTelemetry(val source: MapSource, private val controller: ConcurrencyController? = null) {
+    private val histograms = Array(TilePhase.values().size) { LatencyHistogram() }
+    private val errors = AtomicLongArray(TileErrorClass.values().size)
+    private val tiles = AtomicLong()
+    private val bytes = AtomicLong()
+    private val startNs = System.nanoTime()
+
+    fun record(phase: TilePhase, durationNs: Long) {
+        histograms[phase.ordinal].record(durationNs)
+    }
+
+    /**
+     * Record the network phases of a response, when it has them.
+     */
+    fun record(response: TileResponse) {
+        if (response.connectNs > 0) record(TilePhase.CONNECT, response.connectNs)
+        if (response.firstByteNs > 0) record(TilePhase.FIRST_BYTE, response.firstByteNs)
+        if (response.bodyNs > 0) record(TilePhase.BODY, response.bodyNs)
+    }
+
+    fun recordTile(byteCount: Int) {
+        tiles.incrementAndGet()
+        bytes.addAndGet(byteCount.toLong())
+    }
+
+    fun recordError(error: TileErrorClass) {
+        errors.incrementAndGet(error.ordinal)
+    }
+
+    fun snapshot(): TelemetrySnapshot {
+        val elapsedSeconds = (System.nanoTime() - startNs) / 1e9
+        val tileCount = tiles.get()
+        val byteCount = bytes.get()
+        return TelemetrySnapshot(source, elapsedSeconds, tileCount, byteCount,
+                tileCount / elapsedSeconds, byteCount / elapsedSeconds,
+                TileErrorClass.values().associate { it to errors.get(it.ordinal) },
+                controller?.currentInFlight ?: 0, controller?.currentLimit ?: 0,
+                TilePhase.values().associate { it to histograms[it.ordinal].snapshot() })
+    }
+
+    /**
+     * Write a [snapshot] as json in the given directory, as [FILE_NAME].
+     */
+    fun dump(dir: File) {
+        try {
+            File(dir, FILE_NAME).writeText(gson.toJson(snapshot()))
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not write the download telemetry", e)
+        }
+    }
+
+    companion object {
+        const val FILE_NAME = "download-telemetry.json"
+        private const val TAG = "DownloadTelemetry"
+        private val gson = GsonBuilder().setPrettyPrinting().create()
+        private val lastBySource = ConcurrentHashMap<MapSource, DownloadTelemetry>()
+
+        /**
+         * Create the telemetry of a new download. It replaces the one of the previous download of
+         * the same source.
+         */
+        fun start(source: MapSource, controller: ConcurrencyController?): DownloadTelemetry {
+            return DownloadTelemetry(source, controller).also { lastBySource[source] = it }
+        }
+
+        /**
+         * @return the telemetry of the last download of this source, if any
+         */
+        fun of(source: MapSource): DownloadTelemetry? = lastBySource[source]
+    }
+}
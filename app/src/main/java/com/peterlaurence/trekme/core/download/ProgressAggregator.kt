@@ -0,0 +1,109 @@
+package com.peterlaurence.trekme.core.download
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The progress of a download, in percent, along with the current throughput.
+ */
+data class DownloadProgress(val progress: Double, val tilesPerSecond: Double, val bytesPerSecond: Double)
+
+/**
+ * Counts the tiles done by all download threads, and reports the progress at a limited cadence :
+ * when [minIntervalMs] elapsed or when the progress advanced by [minStep] percent since the last
+ * report, whichever comes first. The final 100 % is always reported, by [finish].
+ *
+ * Counting is lock-free. When a report is due, the first thread to notice it does the report while
+ * the others carry on, so the [listener] is never called concurrently.
+ *
+ * @param total The total number of tiles of the download
+ * @param startCount The number of tiles already done, when resuming a download
+ */
+class ProgressAggregator(private val total: Long, startCount: Long = 0,
+                         private val minIntervalMs: Long = 250, private val minStep: Double = 0.5,
+                         private val listener: (DownloadProgress) -> Unit) {
+    private val tiles = AtomicLong(startCount)
+    private val bytes = AtomicLong(0)
+    private val reporting = AtomicBoolean(false)
+    private val finished = AtomicBoolean(false)
+
+    /* Only accessed by the reporting thread */
+    @Volatile
+    private var lastTiles = startCount
+    @Volatile
+    private var lastBytes = 0L
+    @Volatile
+    private var lastNs = System.nanoTime()
+    @Volatile
+    private var tilesPerSecond = 0.0
+    @Volatile
+    private var bytesPerSecond = 0.0
+
+    val progress: DownloadProgress
+        get() = DownloadProgress(percentOf(tiles.get()), tilesPerSecond, bytesPerSecond)
+
+    /**
+     * Record a tile which is done, whether it was downloaded or given up. Thread-safe.
+     *
+     * @param byteCount The size of the tile, or 0 if it couldn't be downloaded
+     */
+    fun onTileDone(byteCount: Int) {
+        val tileCount = tiles.incrementAndGet()
+        bytes.addAndGet(byteCount.toLong())
+
+        if (isReportDue(tileCount, System.nanoTime()) && reporting.compareAndSet(false, true)) {
+            try {
+                /* Another thread may have reported in the meantime */
+                val now = System.nanoTime()
+                if (isReportDue(tiles.get(), now)) report(now)
+            } finally {
+                reporting.set(false)
+            }
+        }
+    }
+
+    /**
+     * Report the completion. Only the first call has an effect.
+     */
+    fun finish() {
+        if (finished.compareAndSet(false, true)) {
+            listener(DownloadProgress(100.0, tilesPerSecond, bytesPerSecond))
+        }
+    }
+
+    private fun isReportDue(tileCount: Long, now: Long): Boolean {
+        return now - lastNs >= minIntervalMs * 1_000_000 ||
+                percentOf(tileCount) - percentOf(lastTiles) >= minStep
+    }
+
+    private fun report(now: Long) {
+        val tileCount = tiles.get()
+        val byteCount = bytes.get()
+        val seconds = (now - lastNs) / 1e9
+        if (seconds > 0) {
+            /* Smooth the throughput, as reports may be close to each other */
+            tilesPerSecond = smooth(tilesPerSecond, (tileCount - lastTiles) / seconds)
+            bytesPerSecond = smooth(bytesPerSecond, (byteCount - lastBytes) / seconds)
+        }
+        lastTiles = tileCount
+        lastBytes = byteCount
+        lastNs = now
+
+        /* The completion is reported by finish */
+        if (!finished.get() && tileCount < total) {
+            listener(DownloadProgress(percentOf(tileCount), tilesPerSecond, bytesPerSecond))
+        }
+    }
+
+    private fun smooth(previous: Double, current: Double): Double {
+        return if (previous == 0.0) current else previous + SMOOTHING * (current - previous)
+    }
+
+    private fun percentOf(tileCount: Long): Double {
+        return if (total == 0L) 100.0 else Math.min(100.0, tileCount * 100.0 / total)
+    }
+
+    companion object {
+        private const val SMOOTHING = 0.3
+    }
+}
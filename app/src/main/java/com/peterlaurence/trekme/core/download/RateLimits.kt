@@ -0,0 +1,111 @@
+package com.peterlaurence.trekme.core.download
+
+import android.util.Log
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import com.google.gson.reflect.TypeToken
+import com.peterlaurence.trekme.core.TrekMeContext
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
+import com.peterlaurence.trekme.core.providers.http.DailyBudget
+import com.peterlaurence.trekme.core.providers.http.RateLimiter
+import com.peterlaurence.trekme.core.providers.http.TileHttpEngine
+import com.peterlaurence.trekme.core.providers.http.TokenBucketRateLimiter
+import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilder
+import java.io.File
+import java.io.IOException
+import java.net.MalformedURLException
+import java.net.URL
+
+/**
+ * The request rate allowed for each [MapSource]. Being throttled by a server is much worse than
+ * pacing ourselves, as the throughput then collapses.
+ *
+ * The defaults of each source can be replaced in [CONFIG_FILE_NAME], in the application folder,
+ * e.g `{"IGN": {"requestsPerSecond": 5, "burst": 10, "dailyBudget": 20000}}`. An entry replaces
+ * all the limits of its source.
+ *
+ * @param requestsPerSecond The sustained rate, or 0 for no limit
+ * @param burst The number of requests which can go right away after an idle period
+ * @param dailyBudget The maximum number of requests per day, or null for no limit
+ */
+class RateLimits(val requestsPerSecond: Double, val burst: Int = 1, val dailyBudget: Int? = null) {
+    fun makeRateLimiter(source: MapSource): RateLimiter {
+        val budget = dailyBudget?.let {
+            DailyBudget(File(TrekMeContext.defaultAppDir, ".budget-${source.name.toLowerCase()}"), it)
+        }
+        return when {
+            requestsPerSecond > 0 -> TokenBucketRateLimiter(requestsPerSecond, burst, budget)
+            budget != null -> object : RateLimiter {
+                override fun acquire() = budget.consume()
+
+                override fun save() = budget.save()
+            }
+            else -> RateLimiter.UNLIMITED
+        }
+    }
+
+    companion object {
+        const val CONFIG_FILE_NAME = "rate-limits.json"
+        private const val TAG = "RateLimits"
+
+        /**
+         * The OSM tile usage policy forbids heavy use, so OSM is paced. IGN counts the requests of
+         * a key against its quota of transactions (about 16 tiles each), so a single device must
+         * not spend a shared key in a day. The others have no known limit.
+         */
+        fun defaultForSource(source: MapSource): RateLimits {
+            return when (source) {
+                MapSource.IGN -> RateLimits(10.0, burst = 20, dailyBudget = 100_000)
+                MapSource.USGS -> RateLimits(0.0)
+                MapSource.OPEN_STREET_MAP -> RateLimits(2.0, burst = 8)
+                MapSource.IGN_SPAIN -> RateLimits(10.0, burst = 20)
+            }
+        }
+
+        /**
+         * The limits of a source, as configured in [CONFIG_FILE_NAME] if it has an entry for it.
+         */
+        fun forSource(source: MapSource): RateLimits {
+            val configured = try {
+                val configFile = File(TrekMeContext.defaultAppDir, CONFIG_FILE_NAME)
+                if (configFile.exists()) parse(configFile.readText())[source] else null
+            } catch (e: IOException) {
+                Log.e(TAG, "Could not read $CONFIG_FILE_NAME", e)
+                null
+            }
+            return configured ?: defaultForSource(source)
+        }
+
+        /**
+         * Read the limits of a [CONFIG_FILE_NAME] file. Unknown sources are ignored.
+         */
+        fun parse(json: String): Map<MapSource, RateLimits> {
+            val type = object : TypeToken<Map<String, RateLimits>>() {}.type
+            val entries: Map<String, RateLimits>? = try {
+                Gson().fromJson(json, type)
+            } catch (e: JsonParseException) {
+                Log.e(TAG, "Malformed $CONFIG_FILE_NAME", e)
+                null
+            }
+            return entries.orEmpty().mapNotNull { (name, limits) ->
+                MapSource.values().firstOrNull { it.name == name }?.let { Pair(it, limits) }
+            }.toMap()
+        }
+
+        /**
+         * Make the [TileHttpEngine] pace the requests to the host of a source, if it doesn't
+         * already. Only the requests of downloads are paced (see [GenericBitmapProvider.fetch]).
+         */
+        @JvmStatic
+        fun install(source: MapSource, urlTileBuilder: UrlTileBuilder,
+                    engine: TileHttpEngine = TileHttpEngine.shared) {
+            val host = try {
+                URL(urlTileBuilder.build(0, 0, 0)).host
+            } catch (e: MalformedURLException) {
+                return
+            }
+            engine.setRateLimiter(host) { forSource(source).makeRateLimiter(source) }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.peterlaurence.trekme.core.download
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import com.peterlaurence.trekme.core.map.TileDedupIndex
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRun
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.CRC32
+
+/**
+ * A tile of a map which is either missing, or which can't be decoded. The [level], [row] and
+ * [col] are those of the file of the tile, inside the map folder.
+ */
+data class DamagedTile(val level: Int, val row: Int, val col: Int, val missing: Boolean)
+
+/**
+ * Checks the tiles of a map folder, as written by the download service (a folder for each level,
+ * and a folder for each row).
+ *
+ * A tile truncated by a dropped connection would otherwise only show up as a blank tile. Checks are
+ * cheap : the SOI and EOI markers of a JPEG are read without reading the rest of the file, the
+ * chunks of a PNG are walked with their CRC down to the IEND chunk, and the size of a WebP is
+ * compared to the size in its RIFF header. A tile is fully decoded by the [decoder] only when these
+ * checks are inconclusive, e.g when there are trailing bytes.
+ *
+ * Rows are spread across [threadCount] threads.
+ */
+class TileIntegrityScanner(private val mapDir: File,
+                           private val decoder: (File) -> Boolean = ::isDecodable,
+                           private val threadCount: Int = Runtime.getRuntime().availableProcessors()) {
+    private val dedupIndex = TileDedupIndex.load(mapDir)
+
+    /**
+     * Check the expected tiles of the given [TileRun]s. A tile which has no file is reported as
+     * missing, unless it is a shared tile (see [TileDedupIndex]).
+     */
+    fun scan(runs: List<TileRun>): List<DamagedTile> {
+        return scanRows(runs.map { RowUnit(it.indexLevel, it.indexRow, it.indexColLeft until it.indexColLeft + it.size) })
+    }
+
+    /**
+     * Check the tiles of any map, without knowing which tiles are expected. So only the tiles
+     * which can't be decoded are reported.
+     */
+    fun scan(): List<DamagedTile> {
+        val rows = mutableListOf<RowUnit>()
+        numericDirs(mapDir).forEach { (level, levelDir) ->
+            numericDirs(levelDir).forEach { (row, _) ->
+                rows.add(RowUnit(level, row, null))
+            }
+        }
+        return scanRows(rows)
+    }
+
+    private fun scanRows(rows: List<RowUnit>): List<DamagedTile> {
+        val damaged = ConcurrentLinkedQueue<DamagedTile>()
+        val nextRow = AtomicInteger(0)
+        val worker = Callable {
+            val checker = TileChecker()
+            while (true) {
+                val i = nextRow.getAndIncrement()
+                if (i >= rows.size) break
+                scanRow(rows[i], checker, damaged)
+            }
+        }
+
+        val threads = threadCount.coerceIn(1, rows.size.coerceAtLeast(1))
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            executor.invokeAll(List(threads) { worker }).forEach { it.get() }
+        } finally {
+            executor.shutdown()
+        }
+
+        return damaged.sortedWith(compareBy({ it.level }, { it.row }, { it.col }))
+    }
+
+    private fun scanRow(unit: RowUnit, checker: TileChecker, damaged: MutableCollection<DamagedTile>) {
+        val rowDir = File(mapDir, unit.level.toString() + File.separator + unit.row.toString())
+
+        /* A single listing per row, instead of a lookup per tile */
+        val files = HashMap<Int, String>()
+        rowDir.list()?.forEach { name ->
+            name.substringBefore('.').toIntOrNull()?.let { files[it] = name }
+        }
+
+        val cols = unit.cols ?: files.keys
+        for (col in cols) {
+            val name = files[col]
+            if (name == null) {
+                val shared = dedupIndex != null && dedupIndex.canonicalOf(unit.level, unit.row, col) != -1L
+                if (!shared) damaged.add(DamagedTile(unit.level, unit.row, col, true))
+                continue
+            }
+
+            val file = File(rowDir, name)
+            val ok = when (checker.check(file)) {
+                TileCheck.OK -> true
+                TileCheck.CORRUPT -> false
+                TileCheck.SUSPICIOUS -> decoder(file)
+            }
+            if (!ok) damaged.add(DamagedTile(unit.level, unit.row, col, false))
+        }
+    }
+
+    private fun numericDirs(dir: File): List<Pair<Int, File>> {
+        return (dir.listFiles() ?: arrayOf()).mapNotNull { file ->
+            file.name.toIntOrNull()?.let { if (file.isDirectory) Pair(it, file) else null }
+        }
+    }
+
+    /**
+     * @param cols The expected columns, or null if they are unknown
+     */
+    private class RowUnit(val level: Int, val row: Int, val cols: Iterable<Int>?)
+}
+
+/**
+ * Turn damaged tiles back into [TileRun]s of a single tile each, using the runs they come from.
+ * Tiles which don't belong to any of the [runs] are ignored.
+ */
+fun List<DamagedTile>.toTileRuns(runs: List<TileRun>): List<TileRun> {
+    val runsByRow = runs.groupBy { Pair(it.indexLevel, it.indexRow) }
+    return mapNotNull { tile ->
+        val run = runsByRow[Pair(tile.level, tile.row)]?.firstOrNull {
+            tile.col - it.indexColLeft in 0 until it.size
+        } ?: return@mapNotNull null
+        val col = run.colLeft + tile.col - run.indexColLeft
+        TileRun(run.level, run.row, col, col, run.indexLevel, run.indexRow, tile.col)
+    }
+}
+
+internal enum class TileCheck {
+    OK, CORRUPT, SUSPICIOUS
+}
+
+/**
+ * Not thread-safe, as the read buffer is reused.
+ */
+internal class TileChecker {
+    private var buffer = ByteArray(32 * 1024)
+    private val crc = CRC32()
+
+    fun check(file: File): TileCheck {
+        return try {
+            RandomAccessFile(file, "r").use { raf ->
+                val length = raf.length()
+                if (length < 12) return TileCheck.CORRUPT
+                raf.readFully(buffer, 0, 12)
+                when {
+                    isJpeg(buffer) -> checkJpeg(raf, length)
+                    isPng(buffer) -> checkPng(raf, length)
+                    isWebp(buffer) -> checkWebp(length)
+                    /* Neither a JPEG, a PNG nor a WebP, let the decoder decide */
+                    else -> TileCheck.SUSPICIOUS
+                }
+            }
+        } catch (e: IOException) {
+            TileCheck.CORRUPT
+        }
+    }
+
+    /**
+     * A complete JPEG ends with the EOI marker. Some encoders pad the file after it.
+     */
+    private fun checkJpeg(raf: RandomAccessFile, length: Long): TileCheck {
+        val tailSize = minOf(length, JPEG_TAIL_SIZE.toLong()).toInt()
+        raf.seek(length - tailSize)
+        raf.readFully(buffer, 0, tailSize)
+        if (buffer[tailSize - 2] == 0xFF.toByte() && buffer[tailSize - 1] == 0xD9.toByte()) {
+            return TileCheck.OK
+        }
+        for (i in tailSize - 3 downTo 0) {
+            if (buffer[i] == 0xFF.toByte() && buffer[i + 1] == 0xD9.toByte()) return TileCheck.SUSPICIOUS
+        }
+        return TileCheck.CORRUPT
+    }
+
+    /**
+     * Walk the chunks of a PNG and check the CRC of each of them. The file must end right after
+     * the IEND chunk.
+     */
+    private fun checkPng(raf: RandomAccessFile, length: Long): TileCheck {
+        if (length > buffer.size) buffer = ByteArray(length.toInt())
+        raf.seek(0)
+        raf.readFully(buffer, 0, length.toInt())
+
+        var pos = 8
+        while (pos + 12 <= length) {
+            val chunkLength = readInt(pos)
+            if (chunkLength < 0 || pos + 12L + chunkLength > length) return TileCheck.CORRUPT
+            crc.reset()
+            crc.update(buffer, pos + 4, chunkLength + 4)
+            if (crc.value.toInt() != readInt(pos + 8 + chunkLength)) return TileCheck.CORRUPT
+
+            val isEnd = readInt(pos + 4) == IEND
+            pos += 12 + chunkLength
+            if (isEnd) {
+                return if (pos.toLong() == length) TileCheck.OK else TileCheck.SUSPICIOUS
+            }
+        }
+        return TileCheck.CORRUPT
+    }
+
+    /**
+     * A WebP is a RIFF file, whose header gives the size of the rest of the file. The header is
+     * already in the buffer.
+     */
+    private fun checkWebp(length: Long): TileCheck {
+        val riffSize = (buffer[4].toLong() and 0xFF) or (buffer[5].toLong() and 0xFF shl 8) or
+                (buffer[6].toLong() and 0xFF shl 16) or (buffer[7].toLong() and 0xFF shl 24)
+        return when {
+            riffSize + 8 == length -> TileCheck.OK
+            riffSize + 8 > length -> TileCheck.CORRUPT
+            else -> TileCheck.SUSPICIOUS
+        }
+    }
+
+    private fun readInt(pos: Int): Int {
+        return (buffer[pos].toInt() and 0xFF shl 24) or (buffer[pos + 1].toInt() and 0xFF shl 16) or
+                (buffer[pos + 2].toInt() and 0xFF shl 8) or (buffer[pos + 3].toInt() and 0xFF)
+    }
+
+    private fun isJpeg(head: ByteArray): Boolean {
+        return head[0] == 0xFF.toByte() && head[1] == 0xD8.toByte()
+    }
+
+    private fun isPng(head: ByteArray): Boolean {
+        return head[0] == 0x89.toByte() && head[1] == 'P'.toByte() && head[2] == 'N'.toByte() &&
+                head[3] == 'G'.toByte()
+    }
+
+    private fun isWebp(head: ByteArray): Boolean {
+        return head[0] == 'R'.toByte() && head[1] == 'I'.toByte() && head[2] == 'F'.toByte() &&
+                head[3] == 'F'.toByte() && head[8] == 'W'.toByte() && head[9] == 'E'.toByte() &&
+                head[10] == 'B'.toByte() && head[11] == 'P'.toByte()
+    }
+
+    companion object {
+        private const val JPEG_TAIL_SIZE = 64
+        /* "IEND" in ASCII */
+        private const val IEND = 0x49454E44
+    }
+}
+
+private fun isDecodable(file: File): Boolean {
+    val options = BitmapFactory.Options().apply {
+        inPreferredConfig = Bitmap.Config.RGB_565
+    }
+    val bitmap = BitmapFactory.decodeFile(file.path, options) ?: return false
+    bitmap.recycle()
+    return true
+}
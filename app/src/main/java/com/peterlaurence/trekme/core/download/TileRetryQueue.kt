@@ -0,0 +1,153 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.providers.http.TileResponse
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.DelayQueue
+import java.util.concurrent.Delayed
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The reasons why a tile couldn't be downloaded.
+ */
+enum class TileErrorClass {
+    /* The server couldn't be reached, or the connection dropped */
+    NETWORK,
+    HTTP_CLIENT,
+    HTTP_SERVER,
+    /* The body isn't a valid image */
+    DECODE,
+    /* The tile couldn't be written, e.g the storage is full */
+    WRITE,
+    /* The request wasn't made, as the daily budget of the source is used up */
+    BUDGET;
+
+    companion object {
+        /**
+         * @return the [TileErrorClass] of a failed request, or null if the request succeeded
+         */
+        fun of(response: TileResponse): TileErrorClass? {
+            return when {
+                response.isSuccessful -> null
+                response.code == TileResponse.NO_RESPONSE -> NETWORK
+                response.code == TileResponse.BUDGET_EXHAUSTED -> BUDGET
+                response.code >= 500 -> HTTP_SERVER
+                else -> HTTP_CLIENT
+            }
+        }
+    }
+}
+
+data class FailedTile(val tile: Tile, val error: TileErrorClass)
+
+/**
+ * Holds the tiles whose download failed, until they can be retried.
+ *
+ * Each retry is delayed with an exponential backoff with jitter, so retries don't hit a struggling
+ * server all at once. The number of attempts depends on the [TileErrorClass] : a tile which the
+ * server refuses to serve (e.g HTTP 404) isn't retried, except on HTTP 408 and 429. After the last
+ * attempt, the tile is reported in [failedTiles].
+ *
+ * Download threads take tiles from the main tile stream first, and only get retries which are due
+ * with [pollDue], so retries never slow down the first pass. When the main stream is exhausted,
+ * [awaitRetry] waits for the remaining retries.
+ */
+class TileRetryQueue(private val maxAttempts: Int = 5, private val baseDelayMs: Long = 500,
+                     private val maxDelayMs: Long = 30_000) {
+    private val queue = DelayQueue<Entry>()
+    private val failed = ConcurrentLinkedQueue<FailedTile>()
+    private val inProgress = AtomicInteger(0)
+    private val random = Random()
+
+    val failedTiles: List<FailedTile>
+        get() = failed.toList()
+
+    /**
+     * A tile to download, and how many times it was already attempted.
+     */
+    inner class Entry(val tile: Tile, val attempt: Int, private val dueNs: Long) : Delayed {
+        override fun getDelay(unit: TimeUnit): Long {
+            return unit.convert(dueNs - System.nanoTime(), TimeUnit.NANOSECONDS)
+        }
+
+        override fun compareTo(other: Delayed): Int {
+            return getDelay(TimeUnit.NANOSECONDS).compareTo(other.getDelay(TimeUnit.NANOSECONDS))
+        }
+    }
+
+    /**
+     * Must be called when a download thread starts working on a tile, so the queue knows that
+     * new retries may still come.
+     */
+    fun newEntry(tile: Tile): Entry {
+        inProgress.incrementAndGet()
+        return Entry(tile, 1, 0)
+    }
+
+    /**
+     * Report that the download of the tile of the given [Entry] succeeded.
+     */
+    fun onSuccess(entry: Entry) {
+        inProgress.decrementAndGet()
+    }
+
+    /**
+     * Report that the download of the tile of the given [Entry] failed. It is either scheduled
+     * for a retry, or reported as permanently missing.
+     *
+     * @return true if the tile will be retried
+     */
+    fun onFailure(entry: Entry, error: TileErrorClass, code: Int): Boolean {
+        val retry = entry.attempt < attemptsFor(error, code)
+        if (retry) {
+            val delayMs = Math.min(maxDelayMs, baseDelayMs shl (entry.attempt - 1))
+            val jitteredMs = delayMs / 2 + (random.nextDouble() * delayMs / 2).toLong()
+            queue.add(Entry(entry.tile, entry.attempt + 1, System.nanoTime() + jitteredMs * 1_000_000))
+        } else {
+            failed.add(FailedTile(entry.tile, error))
+        }
+        /* Decrement after the retry is queued, see awaitRetry */
+        inProgress.decrementAndGet()
+        return retry
+    }
+
+    /**
+     * Get a retry which is due, without waiting.
+     */
+    fun pollDue(): Entry? {
+        return queue.poll()?.also { inProgress.incrementAndGet() }
+    }
+
+    /**
+     * Wait for the next retry.
+     *
+     * @return the next retry, or null if there is none left and no tile is being downloaded (so
+     * none can come), or if [isActive] returns false.
+     */
+    fun awaitRetry(isActive: () -> Boolean): Entry? {
+        while (isActive()) {
+            queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)?.let {
+                inProgress.incrementAndGet()
+                return it
+            }
+            if (inProgress.get() == 0 && queue.isEmpty()) return null
+        }
+        return null
+    }
+
+    private fun attemptsFor(error: TileErrorClass, code: Int): Int {
+        return when (error) {
+            TileErrorClass.NETWORK, TileErrorClass.HTTP_SERVER -> maxAttempts
+            TileErrorClass.DECODE, TileErrorClass.WRITE -> Math.min(2, maxAttempts)
+            TileErrorClass.HTTP_CLIENT -> if (code == 408 || code == 429) maxAttempts else 1
+            /* Retrying won't help until tomorrow */
+            TileErrorClass.BUDGET -> 1
+        }
+    }
+
+    companion object {
+        private const val POLL_INTERVAL_MS = 200L
+    }
+}
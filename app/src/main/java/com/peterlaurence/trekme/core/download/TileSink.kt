@@ -0,0 +1,68 @@
+package com.peterlaurence.trekme.core.download
+
+import android.util.Log
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRun
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Writes tiles in a folder for each level, and a folder for each row.
+ *
+ * On external storage (FAT, sdcardfs), creating and checking folders costs as much as writing a
+ * tile. So the sink remembers which row folders exist. When the [TileRun]s are known, all row
+ * folders of a level are created at once, the first time a tile of this level is written.
+ * Each tile is then written with a single open, write and close.
+ *
+ * Thread-safe.
+ */
+class TileSink(private val destDir: File, runs: List<TileRun> = listOf()) {
+    private val rowsByLevel: Map<Int, Set<Int>> = runs.groupBy({ it.indexLevel }, { it.indexRow })
+            .mapValues { it.value.toSet() }
+    private val readyLevels = Collections.newSetFromMap(ConcurrentHashMap<Int, Boolean>())
+    private val readyRows = Collections.newSetFromMap(ConcurrentHashMap<Long, Boolean>())
+
+    /**
+     * @return true if the tile was written
+     */
+    fun write(level: Int, row: Int, fileName: String, data: ByteArray): Boolean {
+        return try {
+            FileOutputStream(File(rowDir(level, row), fileName)).use {
+                it.write(data)
+            }
+            true
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not write the tile $level/$row/$fileName", e)
+            false
+        }
+    }
+
+    private fun rowDir(level: Int, row: Int): File {
+        val levelDir = File(destDir, level.toString())
+        val rowDir = File(levelDir, row.toString())
+        if (rowKey(level, row) in readyRows) return rowDir
+
+        /* The first thread writing at this level creates all the known rows of the level. Other
+         * threads meanwhile create their own row, which is harmless */
+        if (readyLevels.add(level)) {
+            levelDir.mkdirs()
+            rowsByLevel[level]?.forEach {
+                File(levelDir, it.toString()).mkdir()
+                readyRows.add(rowKey(level, it))
+            }
+        }
+        if (rowKey(level, row) !in readyRows) {
+            rowDir.mkdirs()
+            readyRows.add(rowKey(level, row))
+        }
+        return rowDir
+    }
+
+    private fun rowKey(level: Int, row: Int): Long = (level.toLong() shl 32) or row.toLong()
+
+    companion object {
+        private const val TAG = "TileSink"
+    }
+}
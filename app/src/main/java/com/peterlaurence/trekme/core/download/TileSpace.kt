@@ -0,0 +1,58 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRun
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The tiles of a download, shared by all download threads without locking.
+ *
+ * Tiles are numbered by concatenating the [TileRun]s. A thread claims the next tile with a single
+ * atomic increment of a cursor, then finds the run that contains it with a binary search. So there
+ * is no contention point between threads other than this cursor, whatever their number.
+ * Progress is reported separately, by a [ProgressAggregator].
+ *
+ * @param isTileDone Tiles for which this returns true are skipped. This is used when resuming a
+ * download.
+ */
+class TileSpace(runs: List<TileRun>, private val isTileDone: (Tile) -> Boolean = { false }) {
+    private val runs = runs.filter { it.size > 0 }.toTypedArray()
+    private val offsets = LongArray(this.runs.size + 1)
+    private val cursor = AtomicLong(0)
+
+    init {
+        for (i in this.runs.indices) {
+            offsets[i + 1] = offsets[i] + this.runs[i].size
+        }
+    }
+
+    /**
+     * The total number of tiles, including those already downloaded.
+     */
+    val size: Long
+        get() = offsets.last()
+
+    /**
+     * Claim the next tile. Thread-safe.
+     *
+     * @return the tile, or null if all tiles were claimed
+     */
+    fun next(): Tile? {
+        while (true) {
+            val index = cursor.getAndIncrement()
+            if (index >= size) return null
+
+            val tile = tileAt(index)
+            if (!isTileDone(tile)) return tile
+        }
+    }
+
+    private fun tileAt(index: Long): Tile {
+        val found = Arrays.binarySearch(offsets, index)
+        /* Empty runs were removed, so an exact match is the start of a run */
+        val runIndex = if (found >= 0) found else -found - 2
+        val run = runs[runIndex]
+        return run.tileAt((index - offsets[runIndex]).toInt())
+    }
+}
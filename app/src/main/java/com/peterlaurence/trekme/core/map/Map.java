@@ -21,6 +21,7 @@ import com.peterlaurence.trekme.core.projection.ProjectionTask;
 import com.peterlaurence.trekme.util.ZipTask;
 import com.qozix.tileview.graphics.BitmapProvider;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -138,7 +139,18 @@ public class Map {
         return mBitmapProvider;
     }
 
+    /**
+     * Replace the {@link BitmapProvider} of the map. The previous one is closed if it holds
+     * resources, e.g the database connections of an MBTiles map.
+     */
     public void setBitmapProvider(BitmapProvider bitmapProvider) {
+        if (mBitmapProvider != bitmapProvider && mBitmapProvider instanceof Closeable) {
+            try {
+                ((Closeable) mBitmapProvider).close();
+            } catch (IOException e) {
+                Log.e(TAG, stackTraceToString(e));
+            }
+        }
         mBitmapProvider = bitmapProvider;
     }
 
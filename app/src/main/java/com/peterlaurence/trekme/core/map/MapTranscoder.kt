@@ -0,0 +1,175 @@
+package com.peterlaurence.trekme.core.map
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.Build
+import android.util.Log
+import com.peterlaurence.trekme.core.map.maploader.MapLoader
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderLibVips
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+/**
+ * Re-encodes the tiles of a map stored in folders to WebP, which is smaller than JPEG and PNG for
+ * the same quality.
+ *
+ * New tiles are written next to the original ones, which the map keeps using until all tiles are
+ * converted. Then the image extension of the map is changed, and the original tiles are removed.
+ * The original extension is written in [PROGRESS_FILE_NAME] during the conversion, so an
+ * interrupted conversion resumes with the tiles which are not converted yet, or with the removal of
+ * the original tiles.
+ */
+object MapTranscoder {
+    const val PROGRESS_FILE_NAME = "transcode.progress"
+    private const val TARGET_EXTENSION = ".webp"
+    private const val MAX_THREADS = 4
+    private const val TAG = "MapTranscoder"
+
+    /**
+     * Before Android 10 (API 29), the WebP encoder of the platform is always lossy, whatever the
+     * quality.
+     */
+    @JvmStatic
+    val isLosslessSupported: Boolean
+        get() = Build.VERSION.SDK_INT >= 29
+
+    /**
+     * @param bytesSaved The size of the original tiles minus the size of the new ones
+     */
+    data class Result(val success: Boolean, val bytesSaved: Long)
+
+    /**
+     * Convert the tiles of a map to WebP, and update the map accordingly.
+     * Must not be called from the UI thread. Conversions run one at a time.
+     *
+     * @param lossless Whether the tiles are encoded without loss, only if [isLosslessSupported]
+     * @param quality The quality of lossy encoding from 0 to 100, or the compression effort of
+     * lossless encoding
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Synchronized
+    fun transcode(map: Map, lossless: Boolean, quality: Int = 80): Result {
+        if (map.mapGson.provider.generated_by != BitmapProviderLibVips.GENERATOR_NAME ||
+                (lossless && !isLosslessSupported)) {
+            return Result(false, 0)
+        }
+        val mapDir = map.directory
+        val progressFile = File(mapDir, PROGRESS_FILE_NAME)
+
+        /* The conversion is done if the map already uses the new tiles. Only the cleanup may remain */
+        val sourceExtension = map.imageExtension ?: return Result(false, 0)
+        if (sourceExtension == TARGET_EXTENSION) {
+            val originalExtension = try {
+                progressFile.takeIf { it.exists() }?.readText()?.trim()
+            } catch (e: IOException) {
+                null
+            } ?: return Result(true, 0)
+            return Result(true, removeTiles(mapDir, originalExtension, TARGET_EXTENSION)).also {
+                progressFile.delete()
+            }
+        }
+
+        try {
+            progressFile.writeText(sourceExtension)
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not start the conversion of ${mapDir.name}", e)
+            return Result(false, 0)
+        }
+
+        /* WEBP_LOSSLESS came with API 29, which is above the SDK the app is compiled with */
+        val format = if (lossless) Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS") else Bitmap.CompressFormat.WEBP
+        if (!encodeTiles(mapDir, sourceExtension, format, quality)) {
+            return Result(false, 0)
+        }
+
+        map.mapGson.provider.image_extension = TARGET_EXTENSION
+        if (!MapLoader.saveMap(map)) {
+            map.mapGson.provider.image_extension = sourceExtension
+            return Result(false, 0)
+        }
+        map.bitmapProvider = MapLoader.makeBitmapProvider(map)
+
+        return Result(true, removeTiles(mapDir, sourceExtension, TARGET_EXTENSION)).also {
+            progressFile.delete()
+        }
+    }
+
+    /**
+     * Write a WebP tile next to each tile of the given extension which doesn't have one yet. Each
+     * row is a task of a pool of at most [MAX_THREADS] threads.
+     */
+    private fun encodeTiles(mapDir: File, sourceExtension: String, format: Bitmap.CompressFormat,
+                            quality: Int): Boolean {
+        val rowDirs = numericFiles(mapDir, true).flatMap { (_, levelDir) ->
+            numericFiles(levelDir, true).map { it.second }
+        }
+        val tasks = rowDirs.map { rowDir ->
+            Callable {
+                rowDir.listFiles { file -> file.name.endsWith(sourceExtension) }.orEmpty().all { tileFile ->
+                    val target = File(rowDir, tileFile.name.removeSuffix(sourceExtension) + TARGET_EXTENSION)
+                    target.exists() || encodeTile(tileFile, target, format, quality)
+                }
+            }
+        }
+
+        val executor = Executors.newFixedThreadPool(minOf(MAX_THREADS, Runtime.getRuntime().availableProcessors()))
+        return try {
+            executor.invokeAll(tasks).all { it.get() }
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Could not convert the tiles of ${mapDir.name}", e)
+            false
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun encodeTile(source: File, target: File, format: Bitmap.CompressFormat, quality: Int): Boolean {
+        val bitmap = BitmapFactory.decodeFile(source.path) ?: return false
+        val tmpFile = File(target.parentFile, target.name + ".tmp")
+        return try {
+            val encoded = FileOutputStream(tmpFile).use {
+                bitmap.compress(format, quality, it)
+            }
+            /* Never put a partial tile in place of the original one */
+            if (!encoded) throw IOException("Could not encode ${source.path}")
+            tmpFile.renameTo(target)
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not write ${target.path}", e)
+            tmpFile.delete()
+            false
+        } finally {
+            bitmap.recycle()
+        }
+    }
+
+    /**
+     * Remove the tiles of the given extension which have been replaced.
+     *
+     * @return the size of the removed tiles, minus the size of the tiles which replace them
+     */
+    private fun removeTiles(mapDir: File, extension: String, newExtension: String): Long {
+        var bytesSaved = 0L
+        for ((_, levelDir) in numericFiles(mapDir, true)) {
+            for ((_, rowDir) in numericFiles(levelDir, true)) {
+                for (tileFile in rowDir.listFiles { file -> file.name.endsWith(extension) }.orEmpty()) {
+                    val newTile = File(rowDir, tileFile.name.removeSuffix(extension) + newExtension)
+                    if (!newTile.exists()) continue
+                    val size = tileFile.length()
+                    if (tileFile.delete()) bytesSaved += size - newTile.length()
+                }
+            }
+        }
+        return bytesSaved
+    }
+
+    private fun numericFiles(dir: File, directories: Boolean): List<Pair<Int, File>> {
+        return (dir.listFiles() ?: arrayOf()).filter { it.isDirectory == directories }.mapNotNull { file ->
+            file.name.substringBefore('.').toIntOrNull()?.let { Pair(it, file) }
+        }
+    }
+}
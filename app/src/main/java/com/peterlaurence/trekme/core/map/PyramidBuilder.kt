@@ -0,0 +1,215 @@
+package com.peterlaurence.trekme.core.map
+
+import android.graphics.*
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/* The tiles of a level, by row then by column */
+private typealias LevelTiles = kotlin.collections.Map<Int, kotlin.collections.Map<Int, File>>
+
+/**
+ * Generates the missing levels of a map stored in folders (a folder for each level, and a folder
+ * for each row), from the level above. Each tile of level n is made of the four tiles of level
+ * n + 1 it covers, downsampled by two.
+ *
+ * Levels are built from the highest to the lowest. Within a level, each row of tiles is a task of
+ * a thread pool. A thread only holds the tiles of the destination tile it's working on, so memory
+ * doesn't depend on the size of the map.
+ *
+ * A level is built again only if the build was interrupted. The level being built is written in
+ * [PROGRESS_FILE_NAME], and tiles are written to a temporary file first, then renamed. So a resumed
+ * build skips the tiles which are already there.
+ *
+ * @param extension The extension of the tiles, with the dot. It gives the encoding of new tiles.
+ */
+class PyramidBuilder(private val mapDir: File, private val extension: String,
+                     private val threadCount: Int = Runtime.getRuntime().availableProcessors()) {
+
+    /**
+     * The levels to build, from the highest.
+     */
+    val missingLevels: List<Int>
+        get() {
+            val levels = numericFiles(mapDir, true).map { it.first }
+            val maxLevel = levels.max() ?: return listOf()
+            val inProgress = readProgress()
+            return (maxLevel - 1 downTo 0).filter { it !in levels || it == inProgress }
+        }
+
+    /**
+     * Build all missing levels. Must not be called from the UI thread.
+     *
+     * @param onLevelBuilt Called each time a level is complete.
+     * @return true on success
+     */
+    @JvmOverloads
+    fun build(onLevelBuilt: (level: Int) -> Unit = {}): Boolean {
+        val levels = missingLevels
+        if (levels.isEmpty()) return true
+
+        val executor = Executors.newFixedThreadPool(threadCount)
+        try {
+            for (level in levels) {
+                writeProgress(level)
+                if (!buildLevel(level, executor)) return false
+                onLevelBuilt(level)
+            }
+            File(mapDir, PROGRESS_FILE_NAME).delete()
+            return true
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun buildLevel(level: Int, executor: ExecutorService): Boolean {
+        val sourceDir = File(mapDir, (level + 1).toString())
+        val sourceRows = numericFiles(sourceDir, true).toMap()
+        val rowCount = ((sourceRows.keys.max() ?: return false) + 2) / 2
+        val sourceTiles = sourceRows.mapValues { numericFiles(it.value, false).toMap() }
+        val tileSize = tileSize(sourceTiles)
+        val levelDir = File(mapDir, level.toString())
+
+        val tasks = (0 until rowCount).map { row ->
+            Callable {
+                val upperCols = sourceTiles[row * 2] ?: mapOf()
+                val lowerCols = sourceTiles[row * 2 + 1] ?: mapOf()
+                val colCount = ((upperCols.keys + lowerCols.keys).max() ?: return@Callable true) / 2 + 1
+                val rowDir = File(levelDir, row.toString())
+                rowDir.mkdirs()
+
+                (0 until colCount).all { col ->
+                    val tileFile = File(rowDir, col.toString() + extension)
+                    tileFile.exists() || buildTile(tileFile, tileSize, upperCols[col * 2],
+                            upperCols[col * 2 + 1], lowerCols[col * 2], lowerCols[col * 2 + 1])
+                }
+            }
+        }
+
+        return try {
+            executor.invokeAll(tasks).all { it.get() }
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Could not build the level $level of ${mapDir.name}", e)
+            false
+        }
+    }
+
+    /**
+     * The size of the tiles of a level which are not on its right or bottom edge. A tile with a
+     * column (resp. a row) lower than the last one has the full width (resp. height). Only the
+     * headers of those tiles are read.
+     */
+    private fun tileSize(tiles: LevelTiles): Point {
+        val lastRow = tiles.keys.max() ?: 0
+        val lastCol = tiles.values.mapNotNull { it.keys.max() }.max() ?: 0
+        val options = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        fun bounds(file: File): Point {
+            BitmapFactory.decodeFile(file.path, options)
+            return Point(options.outWidth, options.outHeight)
+        }
+
+        val width = tiles.values.asSequence().flatMap { it.entries.asSequence() }
+                .firstOrNull { it.key < lastCol }?.let { bounds(it.value).x }?.takeIf { it > 0 }
+        val height = tiles.entries.firstOrNull { it.key < lastRow && it.value.isNotEmpty() }
+                ?.let { bounds(it.value.values.first()).y }?.takeIf { it > 0 }
+
+        /* A level with a single column (or row) never needs that dimension, but tiles are square */
+        return Point(width ?: height ?: 0, height ?: width ?: 0)
+    }
+
+    /**
+     * Make a tile from the (up to) four tiles it covers. Any of them may be missing, as in sparse
+     * maps: the right and bottom ones are placed from the [tileSize] of the level. Tiles on the
+     * right and bottom edges of a level may be smaller, and so is the resulting tile.
+     */
+    private fun buildTile(tileFile: File, tileSize: Point, topLeft: File?, topRight: File?,
+                          bottomLeft: File?, bottomRight: File?): Boolean {
+        val sources = arrayOf(topLeft, topRight, bottomLeft, bottomRight).map { file ->
+            file?.let { BitmapFactory.decodeFile(it.path) }
+        }
+        val (tl, tr, bl, br) = sources
+        try {
+            if (sources.all { it == null }) return true
+            val rightWidth = tr?.width ?: br?.width
+            val bottomHeight = bl?.height ?: br?.height
+            val leftWidth = tl?.width ?: bl?.width ?: tileSize.x.takeIf { it > 0 } ?: rightWidth!!
+            val topHeight = tl?.height ?: tr?.height ?: tileSize.y.takeIf { it > 0 } ?: bottomHeight!!
+            val width = (leftWidth + (rightWidth ?: 0) + 1) / 2
+            val height = (topHeight + (bottomHeight ?: 0) + 1) / 2
+
+            val tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            val canvas = Canvas(tile)
+            val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+            val offsets = arrayOf(Point(0, 0), Point(leftWidth, 0), Point(0, topHeight), Point(leftWidth, topHeight))
+            sources.forEachIndexed { i, source ->
+                if (source != null) {
+                    val left = offsets[i].x / 2f
+                    val top = offsets[i].y / 2f
+                    canvas.drawBitmap(source, null, RectF(left, top, left + source.width / 2f,
+                            top + source.height / 2f), paint)
+                }
+            }
+
+            return writeTile(tile, tileFile).also { tile.recycle() }
+        } finally {
+            sources.forEach { it?.recycle() }
+        }
+    }
+
+    private fun writeTile(tile: Bitmap, tileFile: File): Boolean {
+        val tmpFile = File(tileFile.parentFile, tileFile.name + ".tmp")
+        return try {
+            val encoded = FileOutputStream(tmpFile).use {
+                tile.compress(compressFormat, QUALITY, it)
+            }
+            if (!encoded) throw IOException("Could not encode ${tileFile.path}")
+            tmpFile.renameTo(tileFile)
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not write ${tileFile.path}", e)
+            tmpFile.delete()
+            false
+        }
+    }
+
+    private val compressFormat by lazy {
+        when (extension.toLowerCase()) {
+            ".png" -> Bitmap.CompressFormat.PNG
+            ".webp" -> Bitmap.CompressFormat.WEBP
+            else -> Bitmap.CompressFormat.JPEG
+        }
+    }
+
+    private fun readProgress(): Int? {
+        return try {
+            File(mapDir, PROGRESS_FILE_NAME).takeIf { it.exists() }?.readText()?.trim()?.toIntOrNull()
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun writeProgress(level: Int) {
+        try {
+            File(mapDir, PROGRESS_FILE_NAME).writeText(level.toString())
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not save the progress of ${mapDir.name}", e)
+        }
+    }
+
+    private fun numericFiles(dir: File, directories: Boolean): List<Pair<Int, File>> {
+        return (dir.listFiles() ?: arrayOf()).filter { it.isDirectory == directories }.mapNotNull { file ->
+            if (!directories && !file.name.endsWith(extension)) return@mapNotNull null
+            file.name.substringBefore('.').toIntOrNull()?.let { Pair(it, file) }
+        }
+    }
+
+    companion object {
+        const val PROGRESS_FILE_NAME = "pyramid.progress"
+        private const val QUALITY = 90
+        private const val TAG = "PyramidBuilder"
+    }
+}
@@ -0,0 +1,173 @@
+package com.peterlaurence.trekme.core.map
+
+import android.util.Log
+import java.io.*
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * Large maps contain many identical tiles (sea, blank "no data" tiles, uniform forest). Such tiles
+ * compress well, so only small tiles are considered. The first occurrence of a tile at a given
+ * level which is written (see [onTileWritten]) becomes the canonical tile. The following
+ * occurrences aren't written : a record in [INDEX_FILE_NAME] points them to the canonical tile
+ * instead. Until a canonical tile is written, its duplicates are written as usual, so a record
+ * never points to a missing file.
+ *
+ * Tiles are only shared within a level, so each level keeps at least one regular file.
+ *
+ * Thread-safe. Records are written right away (without buffering), so the index is consistent
+ * with the tiles which are written even if the download is interrupted.
+ */
+class TileDedupStore(mapDir: File) {
+    private val indexFile = File(mapDir, INDEX_FILE_NAME)
+    private val canonicalTiles = HashMap<ByteBuffer, Long>()
+    /* The hash of the tiles which may become canonical once written */
+    private val pendingTiles = HashMap<Long, ByteBuffer>()
+    private var output: FileOutputStream? = null
+    private val digest = object : ThreadLocal<MessageDigest>() {
+        override fun initialValue(): MessageDigest = MessageDigest.getInstance("SHA-1")
+    }
+
+    /**
+     * Record a tile which is about to be written.
+     *
+     * @return true if the tile is a duplicate and was recorded in the index, in which case it must
+     * not be written. Otherwise the tile must be written as usual, then reported with
+     * [onTileWritten].
+     */
+    fun addTile(level: Int, row: Int, col: Int, data: ByteArray): Boolean {
+        if (data.size > MAX_TILE_SIZE) return false
+
+        val md = digest.get()
+        md.update(ByteBuffer.allocate(4).putInt(level).array())
+        val key = ByteBuffer.wrap(md.digest(data))
+
+        val canonical = synchronized(canonicalTiles) {
+            val existing = canonicalTiles[key]
+            if (existing == null) pendingTiles[tileKey(level, row, col)] = key
+            existing
+        } ?: return false
+
+        val record = ByteBuffer.allocate(RECORD_SIZE).putLong(tileKey(level, row, col)).putLong(canonical)
+        return synchronized(this) {
+            try {
+                val out = output ?: FileOutputStream(indexFile, true).also { output = it }
+                out.write(record.array())
+                true
+            } catch (e: IOException) {
+                Log.e(TAG, "Could not record a shared tile", e)
+                false
+            }
+        }
+    }
+
+    /**
+     * Report that a tile for which [addTile] returned false is written. If no identical tile was
+     * written before, it becomes the canonical tile.
+     */
+    fun onTileWritten(level: Int, row: Int, col: Int) {
+        val tileKey = tileKey(level, row, col)
+        synchronized(canonicalTiles) {
+            val key = pendingTiles.remove(tileKey) ?: return
+            if (!canonicalTiles.containsKey(key)) canonicalTiles[key] = tileKey
+        }
+    }
+
+    @Synchronized
+    fun close() {
+        try {
+            output?.close()
+        } catch (e: IOException) {
+            // nothing to do
+        }
+        output = null
+    }
+
+    companion object {
+        const val INDEX_FILE_NAME = "dedup.idx"
+        /* Uniform tiles are much smaller than this */
+        private const val MAX_TILE_SIZE = 6 * 1024
+        private const val TAG = "TileDedupStore"
+    }
+}
+
+/**
+ * The read side of the [TileDedupStore] index of a map. Lookups are a binary search in a sorted
+ * array, so the whole index is kept in memory at a low cost.
+ */
+class TileDedupIndex private constructor(private val keys: LongArray, private val canonicals: LongArray) {
+    val size: Int
+        get() = keys.size
+
+    /**
+     * @return the canonical tile of the given tile as a key (see [canonicalPath]), or -1 if the
+     * tile is a regular one
+     */
+    fun canonicalOf(level: Int, row: Int, col: Int): Long {
+        val i = keys.binarySearch(tileKey(level, row, col))
+        return if (i >= 0) canonicals[i] else -1
+    }
+
+    /**
+     * Iterate over the shared tiles, with the key of each tile and the key of its canonical tile
+     * (see [tileKey]).
+     */
+    fun forEach(action: (Long, Long) -> Unit) {
+        for (i in keys.indices) {
+            action(keys[i], canonicals[i])
+        }
+    }
+
+    companion object {
+        /**
+         * @return the index of the map, or null if the map has no shared tiles
+         */
+        @JvmStatic
+        fun load(mapDir: File): TileDedupIndex? {
+            val indexFile = File(mapDir, TileDedupStore.INDEX_FILE_NAME)
+            if (!indexFile.exists()) return null
+            return try {
+                val count = (indexFile.length() / RECORD_SIZE).toInt()
+                val records = LongArray(count * 2)
+                DataInputStream(BufferedInputStream(FileInputStream(indexFile))).use {
+                    for (i in 0 until count * 2) {
+                        records[i] = it.readLong()
+                    }
+                }
+
+                /* Sort the records by tile */
+                val order = (0 until count).sortedBy { records[it * 2] }
+                val keys = LongArray(count) { records[order[it] * 2] }
+                val canonicals = LongArray(count) { records[order[it] * 2 + 1] }
+                TileDedupIndex(keys, canonicals)
+            } catch (e: IOException) {
+                Log.e("TileDedupIndex", "Could not read the index of shared tiles", e)
+                null
+            }
+        }
+
+        /**
+         * The path of a tile given by [canonicalOf] or [tileKey], relative to the map folder and
+         * without extension.
+         */
+        @JvmStatic
+        fun canonicalPath(canonical: Long): String {
+            return keyLevel(canonical).toString() + File.separator + keyRow(canonical) + File.separator +
+                    keyCol(canonical)
+        }
+    }
+}
+
+private const val RECORD_SIZE = 16
+private const val MASK = (1L shl 21) - 1
+
+/**
+ * A tile as a single long, which sorts by level, then row, then column.
+ */
+fun tileKey(level: Int, row: Int, col: Int): Long {
+    return (level.toLong() shl 42) or (row.toLong() shl 21) or col.toLong()
+}
+
+fun keyLevel(key: Long): Int = (key ushr 42).toInt()
+fun keyRow(key: Long): Int = ((key ushr 21) and MASK).toInt()
+fun keyCol(key: Long): Int = (key and MASK).toInt()
@@ -0,0 +1,235 @@
+package com.peterlaurence.trekme.core.map
+
+import android.util.Log
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A map stored in two files instead of a file per tile :
+ *
+ * * [DATA_FILE_NAME] holds the encoded tiles, one after another
+ * * [INDEX_FILE_NAME] holds a header followed by a record for each tile : its key (see [tileKey]),
+ * the offset of its bytes in the data file and their length
+ *
+ * The data file is memory-mapped by segments of [SEGMENT_SIZE] bytes, and no tile spans over two
+ * segments. So reading a tile never opens a file.
+ * Several tiles may share the same bytes (e.g sea tiles). When a tile appears more than once in
+ * the index, the last record wins.
+ */
+class TilePack private constructor(private val keys: LongArray, private val offsets: LongArray,
+                                   private val lengths: IntArray,
+                                   private val segments: Array<MappedByteBuffer>) {
+    val size: Int
+        get() = keys.size
+
+    /**
+     * The levels of the map, in ascending order.
+     */
+    val levels: List<Int> by lazy {
+        keys.map { keyLevel(it) }.distinct()
+    }
+
+    /**
+     * @return the bytes of the tile as a read-only view on the data file, or null if the pack
+     * doesn't contain this tile
+     */
+    fun getTile(level: Int, row: Int, col: Int): ByteBuffer? {
+        val i = keys.binarySearch(tileKey(level, row, col))
+        return if (i >= 0) tileAt(i) else null
+    }
+
+    /**
+     * @return the first tile of the given level, or null if there is none
+     */
+    fun firstTileOf(level: Int): ByteBuffer? {
+        val i = keys.binarySearch(tileKey(level, 0, 0))
+        val index = if (i >= 0) i else -(i + 1)
+        return if (index < keys.size && keyLevel(keys[index]) == level) tileAt(index) else null
+    }
+
+    /**
+     * @return the number of columns and rows of the given level
+     */
+    fun sizeOf(level: Int): Pair<Int, Int> {
+        var colCount = 0
+        var rowCount = 0
+        keys.forEach {
+            if (keyLevel(it) == level) {
+                colCount = maxOf(colCount, keyCol(it) + 1)
+                rowCount = maxOf(rowCount, keyRow(it) + 1)
+            }
+        }
+        return Pair(colCount, rowCount)
+    }
+
+    fun forEach(action: (level: Int, row: Int, col: Int, data: ByteBuffer) -> Unit) {
+        for (i in keys.indices) {
+            action(keyLevel(keys[i]), keyRow(keys[i]), keyCol(keys[i]), tileAt(i))
+        }
+    }
+
+    private fun tileAt(i: Int): ByteBuffer {
+        val offset = offsets[i]
+        val buffer = segments[(offset / SEGMENT_SIZE).toInt()].duplicate()
+        val position = (offset % SEGMENT_SIZE).toInt()
+        buffer.limit(position + lengths[i])
+        buffer.position(position)
+        return buffer.slice()
+    }
+
+    companion object {
+        const val DATA_FILE_NAME = "tiles.pack"
+        const val INDEX_FILE_NAME = "tiles.idx"
+        internal const val MAGIC = 0x54504B31 // "TPK1"
+        internal const val HEADER_SIZE = 4
+        internal const val RECORD_SIZE = 20
+        internal const val SEGMENT_SIZE = 1L shl 30
+        private const val TAG = "TilePack"
+
+        @JvmStatic
+        fun exists(mapDir: File): Boolean {
+            return File(mapDir, INDEX_FILE_NAME).exists() && File(mapDir, DATA_FILE_NAME).exists()
+        }
+
+        /**
+         * @return the [TilePack] of the map folder, or null if there is none or if it can't be read
+         */
+        @JvmStatic
+        fun open(mapDir: File): TilePack? {
+            if (!exists(mapDir)) return null
+            return try {
+                val (keys, offsets, lengths) = readIndex(File(mapDir, INDEX_FILE_NAME))
+                val segments = RandomAccessFile(File(mapDir, DATA_FILE_NAME), "r").use { raf ->
+                    val channel = raf.channel
+                    val size = channel.size()
+                    Array(((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE).toInt()) {
+                        val start = it * SEGMENT_SIZE
+                        channel.map(FileChannel.MapMode.READ_ONLY, start, minOf(SEGMENT_SIZE, size - start))
+                    }
+                }
+                TilePack(keys, offsets, lengths, segments)
+            } catch (e: IOException) {
+                Log.e(TAG, "Could not open the tiles of ${mapDir.name}", e)
+                null
+            }
+        }
+
+        /**
+         * Read the records of an index, sorted by key. For duplicate keys, only the last record is
+         * kept.
+         */
+        internal fun readIndex(indexFile: File): Triple<LongArray, LongArray, IntArray> {
+            val count = ((indexFile.length() - HEADER_SIZE) / RECORD_SIZE).toInt().coerceAtLeast(0)
+            val keys = LongArray(count)
+            val offsets = LongArray(count)
+            val lengths = IntArray(count)
+            DataInputStream(BufferedInputStream(FileInputStream(indexFile))).use {
+                if (it.readInt() != MAGIC) throw IOException("Not a tile index")
+                for (i in 0 until count) {
+                    keys[i] = it.readLong()
+                    offsets[i] = it.readLong()
+                    lengths[i] = it.readInt()
+                }
+            }
+
+            /* Records are appended as tiles are written, so the index isn't always sorted */
+            if ((1 until count).all { keys[it - 1] < keys[it] }) return Triple(keys, offsets, lengths)
+
+            /* For each key, the last record comes first and is the one kept */
+            val order = (0 until count).sortedWith(compareBy({ keys[it] }, { -it }))
+            val kept = order.filterIndexed { i, record -> i == 0 || keys[order[i - 1]] != keys[record] }
+            return Triple(LongArray(kept.size) { keys[kept[it]] }, LongArray(kept.size) { offsets[kept[it]] },
+                    IntArray(kept.size) { lengths[kept[it]] })
+        }
+    }
+}
+
+/**
+ * Writes the tiles of a [TilePack]. Writing can be resumed : tiles are appended to an existing
+ * pack.
+ *
+ * The bytes of a tile are written before its index record, and records are written unbuffered. So
+ * the index is always consistent with the data, even if the app is killed while writing.
+ *
+ * Thread-safe.
+ */
+class TilePackWriter(mapDir: File) : Closeable {
+    private val indexFile = File(mapDir, TilePack.INDEX_FILE_NAME)
+    private val data = FileOutputStream(File(mapDir, TilePack.DATA_FILE_NAME), true).channel
+    private val index: FileOutputStream
+    private val record = ByteBuffer.allocate(TilePack.RECORD_SIZE)
+    private val written = HashMap<Long, Pair<Long, Int>>()
+
+    init {
+        val resume = indexFile.length() >= TilePack.HEADER_SIZE
+
+        /* Drop a record which was partially written */
+        val recordsSize = (indexFile.length() - TilePack.HEADER_SIZE) % TilePack.RECORD_SIZE
+        if (resume && recordsSize != 0L) {
+            RandomAccessFile(indexFile, "rw").use { it.setLength(indexFile.length() - recordsSize) }
+        }
+        index = FileOutputStream(indexFile, resume)
+        if (!resume) {
+            index.write(ByteBuffer.allocate(TilePack.HEADER_SIZE).putInt(TilePack.MAGIC).array())
+        }
+    }
+
+    @Synchronized
+    fun write(level: Int, row: Int, col: Int, bytes: ByteArray) {
+        /* A tile must not span over two segments */
+        var offset = data.size()
+        if (offset / TilePack.SEGMENT_SIZE != (offset + bytes.size - 1) / TilePack.SEGMENT_SIZE) {
+            val padding = TilePack.SEGMENT_SIZE - offset % TilePack.SEGMENT_SIZE
+            data.write(ByteBuffer.allocate(padding.toInt()))
+            offset += padding
+        }
+        val buffer = ByteBuffer.wrap(bytes)
+        while (buffer.hasRemaining()) data.write(buffer)
+        addRecord(tileKey(level, row, col), offset, bytes.size)
+    }
+
+    /**
+     * Make a tile share the bytes of a tile written before.
+     *
+     * @return false if the source tile wasn't written by this writer
+     */
+    @Synchronized
+    fun link(key: Long, sourceKey: Long): Boolean {
+        val (offset, length) = written[sourceKey] ?: return false
+        addRecord(key, offset, length)
+        return true
+    }
+
+    private fun addRecord(key: Long, offset: Long, length: Int) {
+        record.clear()
+        record.putLong(key).putLong(offset).putInt(length)
+        index.write(record.array())
+        written[key] = Pair(offset, length)
+    }
+
+    /**
+     * Rewrite the index sorted by key, so that it is faster to open.
+     */
+    @Synchronized
+    override fun close() {
+        data.close()
+        index.close()
+        try {
+            val (keys, offsets, lengths) = TilePack.readIndex(indexFile)
+            val tmpFile = File(indexFile.parentFile, indexFile.name + ".tmp")
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmpFile))).use {
+                it.writeInt(TilePack.MAGIC)
+                for (i in keys.indices) {
+                    it.writeLong(keys[i])
+                    it.writeLong(offsets[i])
+                    it.writeInt(lengths[i])
+                }
+            }
+            tmpFile.renameTo(indexFile)
+        } catch (e: IOException) {
+            Log.e("TilePackWriter", "Could not sort the tile index", e)
+        }
+    }
+}
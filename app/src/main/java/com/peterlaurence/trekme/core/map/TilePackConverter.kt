@@ -0,0 +1,127 @@
+package com.peterlaurence.trekme.core.map
+
+import android.util.Log
+import com.peterlaurence.trekme.core.download.TileSink
+import com.peterlaurence.trekme.core.map.maploader.MapLoader
+import com.peterlaurence.trekme.core.providers.bitmap.imageFormat
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderLibVips
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderPack
+import java.io.File
+import java.io.IOException
+
+/**
+ * Converts the tiles of a map between the folder layout (a folder for each level, and a folder for
+ * each row) and a [TilePack]. Once a conversion succeeded, the tiles of the previous layout are
+ * removed.
+ */
+object TilePackConverter {
+    private const val TAG = "TilePackConverter"
+
+    /**
+     * Store the tiles of a map in a [TilePack], and update the map accordingly. Only maps whose
+     * tiles are in folders can be packed, and not while their tiles are being converted or
+     * generated.
+     * Must not be called from the UI thread.
+     *
+     * @return true on success
+     */
+    @JvmStatic
+    fun pack(map: Map): Boolean {
+        val mapDir = map.directory
+        val extension = map.imageExtension ?: return false
+        if (map.mapGson.provider.generated_by != BitmapProviderLibVips.GENERATOR_NAME ||
+                File(mapDir, MapTranscoder.PROGRESS_FILE_NAME).exists() ||
+                File(mapDir, PyramidBuilder.PROGRESS_FILE_NAME).exists()) {
+            return false
+        }
+        if (!packFolders(mapDir, extension)) return false
+        map.mapGson.provider.generated_by = BitmapProviderPack.GENERATOR_NAME
+        map.bitmapProvider = MapLoader.makeBitmapProvider(map)
+        MapLoader.saveMap(map)
+        return true
+    }
+
+    /**
+     * Store the tiles of a map in folders again, and update the map accordingly.
+     * Must not be called from the UI thread.
+     *
+     * @return true on success
+     */
+    @JvmStatic
+    fun unpack(map: Map): Boolean {
+        /* A map imported as a pack has no image extension yet */
+        val tilePack = TilePack.open(map.directory) ?: return false
+        val extension = tilePack.levels.firstOrNull()?.let { tilePack.firstTileOf(it) }?.let {
+            ByteArray(minOf(it.remaining(), 16)).also { header -> it.get(header) }.imageFormat()?.extension
+        }
+        if (!unpackToFolders(map.directory)) return false
+        map.mapGson.provider.generated_by = BitmapProviderLibVips.GENERATOR_NAME
+        if (map.mapGson.provider.image_extension == null) {
+            map.mapGson.provider.image_extension = extension
+        }
+        map.bitmapProvider = MapLoader.makeBitmapProvider(map)
+        MapLoader.saveMap(map)
+        return true
+    }
+
+    /**
+     * Move all tiles of the folder layout into a [TilePack]. Tiles shared through the
+     * [TileDedupIndex] keep sharing their bytes. Only the files of the given [extension] are
+     * tiles, others (e.g temporary files) are dropped with the folders.
+     */
+    fun packFolders(mapDir: File, extension: String): Boolean {
+        val levelDirs = numericFiles(mapDir, true)
+        try {
+            TilePackWriter(mapDir).use { writer ->
+                for ((level, levelDir) in levelDirs) {
+                    for ((row, rowDir) in numericFiles(levelDir, true)) {
+                        for ((col, tileFile) in numericFiles(rowDir, false)) {
+                            if (!tileFile.name.endsWith(extension)) continue
+                            writer.write(level, row, col, tileFile.readBytes())
+                        }
+                    }
+                }
+
+                TileDedupIndex.load(mapDir)?.forEach { key, canonical ->
+                    writer.link(key, canonical)
+                }
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not pack the tiles of ${mapDir.name}", e)
+            File(mapDir, TilePack.DATA_FILE_NAME).delete()
+            File(mapDir, TilePack.INDEX_FILE_NAME).delete()
+            return false
+        }
+
+        levelDirs.forEach { it.second.deleteRecursively() }
+        File(mapDir, TileDedupStore.INDEX_FILE_NAME).delete()
+        return true
+    }
+
+    /**
+     * Write each tile of the [TilePack] in its own file, then remove the pack.
+     */
+    fun unpackToFolders(mapDir: File): Boolean {
+        val tilePack = TilePack.open(mapDir) ?: return false
+        val tileSink = TileSink(mapDir)
+        var success = true
+        tilePack.forEach { level, row, col, data ->
+            val tile = ByteArray(data.remaining()).also { data.get(it) }
+            val format = tile.imageFormat()
+            if (format == null || !tileSink.write(level, row, col.toString() + format.extension, tile)) {
+                success = false
+            }
+        }
+        if (!success) return false
+
+        File(mapDir, TilePack.DATA_FILE_NAME).delete()
+        File(mapDir, TilePack.INDEX_FILE_NAME).delete()
+        return true
+    }
+
+    private fun numericFiles(dir: File, directories: Boolean): List<Pair<Int, File>> {
+        return (dir.listFiles() ?: arrayOf()).filter { it.isDirectory == directories }.mapNotNull { file ->
+            file.name.substringBefore('.').toIntOrNull()?.let { Pair(it, file) }
+        }.sortedBy { it.first }
+    }
+}
@@ -1,18 +1,29 @@
 package com.peterlaurence.trekme.core.map.mapimporter;
 
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.util.Log;
 
 import com.peterlaurence.trekme.core.map.Map;
 import com.peterlaurence.trekme.core.map.MapArchive;
+import com.peterlaurence.trekme.core.map.PyramidBuilder;
+import com.peterlaurence.trekme.core.map.TilePack;
 import com.peterlaurence.trekme.core.map.gson.MapGson;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
+import com.peterlaurence.trekme.core.map.mbtiles.MbTiles;
+import com.peterlaurence.trekme.core.map.mbtiles.MbTilesLayout;
+import com.peterlaurence.trekme.core.projection.MercatorProjection;
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderLibVips;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderMbTiles;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderPack;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -23,8 +34,10 @@ import androidx.annotation.Nullable;
 
 /**
  * The {@link MapImporter} exposes a single method : {@link #importFromFile(File, MapProvider, MapImportListener)}.
- * To use the appropriate parser, the {@link MapProvider} enum type must be given. But for instance,
- * only {@link MapProvider#LIBVIPS} is supported. <br>
+ * To use the appropriate parser, the {@link MapProvider} enum type must be given : either
+ * {@link MapProvider#LIBVIPS} for a folder of tiles, {@link MapProvider#PACK} for a {@link TilePack},
+ * or {@link MapProvider#MBTILES} for an MBTiles file. {@link #getMapProvider(File)} tells which one
+ * applies to a folder. <br>
  * This is typically used after a {@link MapArchive} has been extracted, or by the
  * {@link com.peterlaurence.trekme.service.DownloadService}.
  *
@@ -33,6 +46,7 @@ import androidx.annotation.Nullable;
 public class MapImporter {
     private static final java.util.Map<MapProvider, MapParser> mProviderToParserMap;
     private static final int THUMBNAIL_ACCEPT_SIZE = 256;
+    private static final String THUMBNAIL_EXCLUDE_NAME = "blank";
     private static final String[] IMAGE_EXTENSIONS = new String[]{
             "jpg", "gif", "png", "bmp", "webp"
     };
@@ -54,17 +68,16 @@ public class MapImporter {
             return false;
         }
 
-        boolean accept = true;
         for (final String ext : IMAGE_EXTENSIONS) {
             if (!filename.endsWith("." + ext)) {
-                accept = false;
+                continue;
             }
             try {
                 Integer.parseInt(filename.substring(0, filename.lastIndexOf(".")));
+                return true;
             } catch (Exception e) {
-                accept = false;
+                return false;
             }
-            if (accept) return true;
         }
         return false;
     };
@@ -74,6 +87,8 @@ public class MapImporter {
     static {
         java.util.Map<MapProvider, MapParser> map = new HashMap<>();
         map.put(MapProvider.LIBVIPS, new LibvipsMapParser());
+        map.put(MapProvider.PACK, new PackMapParser());
+        map.put(MapProvider.MBTILES, new MbTilesMapParser());
         mProviderToParserMap = Collections.unmodifiableMap(map);
     }
 
@@ -93,7 +108,36 @@ public class MapImporter {
      * Possible {@link Map} providers.
      */
     public enum MapProvider {
-        LIBVIPS
+        LIBVIPS, PACK, MBTILES
+    }
+
+    private static final FileFilter PACK_FOLDER_FILTER = TilePack::exists;
+    private static final FileFilter MBTILES_FOLDER_FILTER = dir -> MbTiles.findFile(dir) != null;
+
+    /**
+     * Deduce the {@link MapProvider} from the content of a map folder, or of one of its
+     * subfolders (as in an extracted archive).
+     */
+    @NonNull
+    public static MapProvider getMapProvider(File dir) {
+        if (findMapFolder(dir, PACK_FOLDER_FILTER) != null) return MapProvider.PACK;
+        if (findMapFolder(dir, MBTILES_FOLDER_FILTER) != null) return MapProvider.MBTILES;
+        return MapProvider.LIBVIPS;
+    }
+
+    /**
+     * @return the given directory or its first subfolder which is accepted by the filter
+     */
+    @Nullable
+    private static File findMapFolder(File dir, FileFilter filter) {
+        if (filter.accept(dir)) return dir;
+        File[] subDirs = dir.listFiles(DIR_FILTER);
+        if (subDirs != null) {
+            for (File subDir : subDirs) {
+                if (filter.accept(subDir)) return subDir;
+            }
+        }
+        return null;
     }
 
     /**
@@ -136,9 +180,25 @@ public class MapImporter {
         enum Issue {
             NO_PARENT_FOLDER_FOUND,
             NO_LEVEL_FOUND,
+            UNREADABLE_FILE,
             UNKNOWN_IMAGE_EXT,
-            MAP_SIZE_INCORRECT
+            MAP_SIZE_INCORRECT,
+            LEVEL_GENERATION_FAILED
+        }
+    }
+
+    @Nullable
+    private static File getThumbnail(File mapDir, BitmapFactory.Options options) {
+        for (File imageFile : mapDir.listFiles(THUMBNAIL_FILTER)) {
+            BitmapFactory.decodeFile(imageFile.getPath(), options);
+            if (options.outWidth == THUMBNAIL_ACCEPT_SIZE &&
+                    options.outHeight == THUMBNAIL_ACCEPT_SIZE) {
+                if (!imageFile.getName().toLowerCase().contains(THUMBNAIL_EXCLUDE_NAME.toLowerCase())) {
+                    return imageFile;
+                }
+            }
         }
+        return null;
     }
 
     private static class MapParseTask extends AsyncTask<Void, Void, Map> {
@@ -199,7 +259,6 @@ public class MapImporter {
      * produced by libvips.
      */
     private static class LibvipsMapParser implements MapParser {
-        private static final String THUMBNAIL_EXCLUDE_NAME = "blank";
         private BitmapFactory.Options options = new BitmapFactory.Options();
         private MapParserStatus mStatus = MapParserStatus.NO_MAP;
 
@@ -231,6 +290,20 @@ public class MapImporter {
                 return null;
             }
 
+            /* Generate the lower levels which are missing, from the highest one */
+            String imageExtension = getImageExtension(imageFile);
+            if (imageExtension == null) {
+                throw new MapParseException(MapParseException.Issue.UNKNOWN_IMAGE_EXT);
+            }
+            PyramidBuilder pyramidBuilder = new PyramidBuilder(parentFolder, imageExtension);
+            List<Integer> missingLevels = pyramidBuilder.getMissingLevels();
+            if (!missingLevels.isEmpty()) {
+                Log.d(TAG, "generating levels " + missingLevels);
+                if (!pyramidBuilder.build()) {
+                    throw new MapParseException(MapParseException.Issue.LEVEL_GENERATION_FAILED);
+                }
+            }
+
             /* Create levels */
             List<MapGson.Level> levelList = new ArrayList<>();
             int maxLevel = getMaxLevel(parentFolder);
@@ -259,7 +332,7 @@ public class MapImporter {
             /* Create provider */
             MapGson.Provider provider = new MapGson.Provider();
             provider.generated_by = BitmapProviderLibVips.GENERATOR_NAME;
-            provider.image_extension = getImageExtension(imageFile);
+            provider.image_extension = imageExtension;
             mapGson.provider = provider;
 
             /* Map size */
@@ -272,7 +345,7 @@ public class MapImporter {
             }
 
             /* Find a thumnail */
-            File thumbnail = getThumbnail(parentFolder);
+            File thumbnail = getThumbnail(parentFolder, options);
             mapGson.thumbnail = thumbnail != null ? thumbnail.getName() : null;
 
             /* Set the map name to the parent folder name */
@@ -396,21 +469,6 @@ public class MapImporter {
             return null;
         }
 
-        private
-        @Nullable
-        File getThumbnail(File mapDir) {
-            for (File imageFile : mapDir.listFiles(THUMBNAIL_FILTER)) {
-                BitmapFactory.decodeFile(imageFile.getPath(), options);
-                if (options.outWidth == THUMBNAIL_ACCEPT_SIZE &&
-                        options.outHeight == THUMBNAIL_ACCEPT_SIZE) {
-                    if (!imageFile.getName().toLowerCase().contains(THUMBNAIL_EXCLUDE_NAME.toLowerCase())) {
-                        return imageFile;
-                    }
-                }
-            }
-            return null;
-        }
-
         private
         @Nullable
         MapGson.MapSize computeMapSize(File lastLevel, MapGson.Level.TileSize lastLevelTileSize) {
@@ -432,4 +490,200 @@ public class MapImporter {
             return mapSize;
         }
     }
+
+    /**
+     * This {@link MapParser} expects a directory {@link File} which contains a {@link TilePack}.
+     * The levels, their tile size and the map size are read from the pack.
+     */
+    private static class PackMapParser implements MapParser {
+        private BitmapFactory.Options options = new BitmapFactory.Options();
+        private MapParserStatus mStatus = MapParserStatus.NO_MAP;
+
+        PackMapParser() {
+            options.inJustDecodeBounds = true;
+        }
+
+        @Override
+        public Map parse(File dir) throws MapParseException {
+            File mapDir = findMapFolder(dir, PACK_FOLDER_FILTER);
+            if (mapDir == null) {
+                throw new MapParseException(MapParseException.Issue.NO_PARENT_FOLDER_FOUND);
+            }
+
+            /* Check whether there is already a map.json file or not */
+            File existingJsonFile = new File(mapDir, MapLoader.MAP_FILE_NAME);
+            if (existingJsonFile.exists()) {
+                MapLoader.INSTANCE.generateMaps(mapDir);
+                mStatus = MapParserStatus.EXISTING_MAP;
+                return null;
+            }
+
+            TilePack tilePack = TilePack.open(mapDir);
+            if (tilePack == null) {
+                throw new MapParseException(MapParseException.Issue.NO_PARENT_FOLDER_FOUND);
+            }
+
+            /* Create levels */
+            List<MapGson.Level> levelList = new ArrayList<>();
+            MapGson.Level.TileSize lastLevelTileSize = null;
+            int lastLevel = 0;
+            for (int i : tilePack.getLevels()) {
+                MapGson.Level.TileSize tileSize = getTileSize(tilePack.firstTileOf(i));
+                if (tileSize == null) continue;
+                MapGson.Level level = new MapGson.Level();
+                level.level = i;
+                level.tile_size = tileSize;
+                levelList.add(level);
+                lastLevelTileSize = tileSize;
+                lastLevel = i;
+            }
+
+            if (lastLevelTileSize == null) {
+                throw new MapParseException(MapParseException.Issue.NO_LEVEL_FOUND);
+            }
+
+            MapGson mapGson = new MapGson();
+            mapGson.levels = levelList;
+
+            /* Create provider */
+            MapGson.Provider provider = new MapGson.Provider();
+            provider.generated_by = BitmapProviderPack.GENERATOR_NAME;
+            mapGson.provider = provider;
+
+            /* Map size */
+            kotlin.Pair<Integer, Integer> sizeInTiles = tilePack.sizeOf(lastLevel);
+            mapGson.size = new MapGson.MapSize();
+            mapGson.size.x = sizeInTiles.getFirst() * lastLevelTileSize.x;
+            mapGson.size.y = sizeInTiles.getSecond() * lastLevelTileSize.y;
+
+            File thumbnail = getThumbnail(mapDir, options);
+            mapGson.thumbnail = thumbnail != null ? thumbnail.getName() : null;
+            mapGson.name = mapDir.getName();
+            mapGson.calibration.calibration_method = MapLoader.CALIBRATION_METHOD.SIMPLE_2_POINTS.name();
+
+            mStatus = MapParserStatus.NEW_MAP;
+            return new Map(mapGson, new File(mapDir, MapLoader.MAP_FILE_NAME), thumbnail);
+        }
+
+        @NonNull
+        @Override
+        public MapParserStatus getStatus() {
+            return mStatus;
+        }
+
+        @Nullable
+        private MapGson.Level.TileSize getTileSize(@Nullable ByteBuffer tile) {
+            if (tile == null) return null;
+            byte[] bytes = new byte[tile.remaining()];
+            tile.get(bytes);
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            if (options.outWidth <= 0) return null;
+            MapGson.Level.TileSize tileSize = new MapGson.Level.TileSize();
+            tileSize.x = options.outWidth;
+            tileSize.y = options.outHeight;
+            return tileSize;
+        }
+    }
+
+    /**
+     * This {@link MapParser} expects a directory {@link File} which contains an MBTiles file. The
+     * tiles stay in this file, and the map is calibrated from the position of its tiles.
+     */
+    private static class MbTilesMapParser implements MapParser {
+        private BitmapFactory.Options options = new BitmapFactory.Options();
+        private MapParserStatus mStatus = MapParserStatus.NO_MAP;
+
+        MbTilesMapParser() {
+            options.inJustDecodeBounds = true;
+        }
+
+        @Override
+        public Map parse(File dir) throws MapParseException {
+            File mapDir = findMapFolder(dir, MBTILES_FOLDER_FILTER);
+            if (mapDir == null) {
+                throw new MapParseException(MapParseException.Issue.NO_PARENT_FOLDER_FOUND);
+            }
+            File mbTilesFile = MbTiles.findFile(mapDir);
+
+            /* Check whether there is already a map.json file or not */
+            File existingJsonFile = new File(mapDir, MapLoader.MAP_FILE_NAME);
+            if (existingJsonFile.exists()) {
+                MapLoader.INSTANCE.generateMaps(mapDir);
+                mStatus = MapParserStatus.EXISTING_MAP;
+                return null;
+            }
+
+            MapGson mapGson = new MapGson();
+            MbTilesLayout layout;
+            String name;
+            try (SQLiteDatabase db = MbTiles.openReadOnly(mbTilesFile)) {
+                layout = MbTiles.readLayout(db);
+                if (layout == null) {
+                    throw new MapParseException(MapParseException.Issue.NO_LEVEL_FOUND);
+                }
+
+                /* Create levels */
+                for (int zoom = layout.getZoomMin(); zoom <= layout.getZoomMax(); zoom++) {
+                    MapGson.Level.TileSize tileSize = getTileSize(MbTiles.readAnyTile(db, zoom));
+                    if (tileSize == null) continue;
+                    MapGson.Level level = new MapGson.Level();
+                    level.level = zoom - layout.getZoomMin();
+                    level.tile_size = tileSize;
+                    mapGson.levels.add(level);
+                }
+                name = MbTiles.readMetadata(db, "name");
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Could not read " + mbTilesFile.getName(), e);
+                throw new MapParseException(MapParseException.Issue.UNREADABLE_FILE);
+            }
+
+            if (mapGson.levels.isEmpty()) {
+                throw new MapParseException(MapParseException.Issue.NO_LEVEL_FOUND);
+            }
+
+            /* Create provider */
+            MapGson.Provider provider = new MapGson.Provider();
+            provider.generated_by = BitmapProviderMbTiles.GENERATOR_NAME;
+            mapGson.provider = provider;
+
+            /* Map size, from the last level */
+            MapGson.Level.TileSize tileSize = mapGson.levels.get(mapGson.levels.size() - 1).tile_size;
+            mapGson.size = new MapGson.MapSize();
+            mapGson.size.x = layout.getColCount() * tileSize.x;
+            mapGson.size.y = layout.getRowCount() * tileSize.y;
+
+            /* MBTiles use WebMercator */
+            kotlin.Pair<MapGson.Calibration.CalibrationPoint, MapGson.Calibration.CalibrationPoint> points =
+                    layout.calibrationPoints();
+            mapGson.calibration.projection = new MercatorProjection();
+            mapGson.calibration.calibration_method = MapLoader.CALIBRATION_METHOD.SIMPLE_2_POINTS.name();
+            mapGson.calibration.calibration_points.add(points.getFirst());
+            mapGson.calibration.calibration_points.add(points.getSecond());
+
+            File thumbnail = getThumbnail(mapDir, options);
+            mapGson.thumbnail = thumbnail != null ? thumbnail.getName() : null;
+            mapGson.name = name != null ? name : mapDir.getName();
+
+            mStatus = MapParserStatus.NEW_MAP;
+            return new Map(mapGson, new File(mapDir, MapLoader.MAP_FILE_NAME), thumbnail);
+        }
+
+        @NonNull
+        @Override
+        public MapParserStatus getStatus() {
+            return mStatus;
+        }
+
+        @Nullable
+        private MapGson.Level.TileSize getTileSize(@Nullable byte[] tile) {
+            if (tile == null) return null;
+            options.outWidth = -1;
+            BitmapFactory.decodeByteArray(tile, 0, tile.length, options);
+            if (options.outWidth <= 0) return null;
+            MapGson.Level.TileSize tileSize = new MapGson.Level.TileSize();
+            tileSize.x = options.outWidth;
+            tileSize.y = options.outHeight;
+            return tileSize;
+        }
+    }
 }
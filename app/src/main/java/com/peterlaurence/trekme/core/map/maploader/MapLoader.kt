@@ -14,6 +14,8 @@ import com.peterlaurence.trekme.core.projection.Projection
 import com.peterlaurence.trekme.core.projection.UniversalTransverseMercator
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderDummy
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderLibVips
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderMbTiles
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderPack
 import com.qozix.tileview.graphics.BitmapProvider
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -225,16 +227,18 @@ object MapLoader : MapImporter.MapImportListener {
      * Then, call all registered [MapListUpdateListener].
      *
      * @param map The [Map] to save.
+     * @return false if the json file could not be written
      */
-    fun saveMap(map: Map) {
+    fun saveMap(map: Map): Boolean {
         val jsonString = mGson.toJson(map.mapGson)
         val configFile = map.configFile
 
-        writeToFile(jsonString, configFile) {
+        val success = writeToFile(jsonString, configFile) {
             Log.e(TAG, "Error while saving the map")
         }
 
         notifyMapListUpdateListeners()
+        return success
     }
 
     /**
@@ -289,6 +293,9 @@ object MapLoader : MapImporter.MapImportListener {
         val mapDirectory = map.directory
         mMapList.remove(map)
 
+        /* Release the files of the map before they are deleted */
+        map.bitmapProvider = null
+
         /* Notify for view update */
         notifyMapListUpdateListeners()
 
@@ -394,22 +401,31 @@ object MapLoader : MapImporter.MapImportListener {
     fun makeBitmapProvider(map: Map): BitmapProvider {
         return when (map.origin) {
             BitmapProviderLibVips.GENERATOR_NAME -> BitmapProviderLibVips(map)
+            BitmapProviderPack.GENERATOR_NAME -> BitmapProviderPack(map)
+            BitmapProviderMbTiles.GENERATOR_NAME -> BitmapProviderMbTiles(map)
             else -> BitmapProviderDummy()
         }
     }
 
     /**
-     * Utility method to write a [String] into a [File].
+     * Utility method to write a [String] into a [File]. The content is written to a temporary file
+     * first, which then replaces [out]. So [out] is either left as it was, or has the whole new
+     * content.
      */
-    private fun writeToFile(st: String, out: File, errCb: () -> Unit) {
-        val writer = PrintWriter(out)
-        try {
-            writer.print(st)
+    private fun writeToFile(st: String, out: File, errCb: () -> Unit): Boolean {
+        val tmpFile = File(out.parentFile, out.name + ".tmp")
+        return try {
+            PrintWriter(tmpFile).use { writer ->
+                writer.print(st)
+                if (writer.checkError()) throw IOException("Could not write ${tmpFile.path}")
+            }
+            if (!tmpFile.renameTo(out)) throw IOException("Could not replace ${out.path}")
+            true
         } catch (e: IOException) {
             errCb()
             Log.e(TAG, e.message, e)
-        } finally {
-            writer.close()
+            tmpFile.delete()
+            false
         }
     }
 }
@@ -0,0 +1,81 @@
+package com.peterlaurence.trekme.core.map.mbtiles
+
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import java.io.File
+
+/**
+ * Access to [MBTiles](https://github.com/mapbox/mbtiles-spec) files, which store the tiles of a map
+ * in a SQLite database.
+ */
+object MbTiles {
+    const val FILE_EXTENSION = ".mbtiles"
+    const val TILE_QUERY = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?"
+
+    /**
+     * @return the MBTiles file of a map folder, or null if there is none
+     */
+    @JvmStatic
+    fun findFile(mapDir: File): File? {
+        return mapDir.listFiles()?.firstOrNull { it.isFile && it.name.endsWith(FILE_EXTENSION) }
+    }
+
+    @JvmStatic
+    fun openReadOnly(file: File): SQLiteDatabase {
+        return SQLiteDatabase.openDatabase(file.path, null,
+                SQLiteDatabase.OPEN_READONLY or SQLiteDatabase.NO_LOCALIZED_COLLATORS)
+    }
+
+    /**
+     * Read the extent of each zoom level. With the index on tiles that MBTiles files have, this
+     * doesn't read the tiles.
+     */
+    @JvmStatic
+    fun readLayout(db: SQLiteDatabase): MbTilesLayout? {
+        val extents = mutableListOf<ZoomExtent>()
+        db.rawQuery("SELECT zoom_level, MIN(tile_column), MAX(tile_column), MIN(tile_row), MAX(tile_row) " +
+                "FROM tiles GROUP BY zoom_level", null).use {
+            while (it.moveToNext()) {
+                val zoom = it.getInt(0)
+                val maxRow = (1 shl zoom) - 1
+                /* The file uses TMS rows, which go upwards */
+                extents.add(ZoomExtent(zoom, it.getInt(1), it.getInt(2), maxRow - it.getInt(4),
+                        maxRow - it.getInt(3)))
+            }
+        }
+        return MbTilesLayout.of(extents)
+    }
+
+    @JvmStatic
+    fun readTile(db: SQLiteDatabase, tile: MbTile): ByteArray? {
+        val args = arrayOf(tile.zoom.toString(), tile.col.toString(), tile.tmsRow.toString())
+        db.rawQuery(TILE_QUERY, args).use {
+            return if (it.moveToFirst()) it.getBlob(0) else null
+        }
+    }
+
+    /**
+     * @return a tile of the given zoom level, or null if there is none
+     */
+    @JvmStatic
+    fun readAnyTile(db: SQLiteDatabase, zoom: Int): ByteArray? {
+        db.rawQuery("SELECT tile_data FROM tiles WHERE zoom_level = ? LIMIT 1", arrayOf(zoom.toString())).use {
+            return if (it.moveToFirst()) it.getBlob(0) else null
+        }
+    }
+
+    /**
+     * @return the value of an entry of the metadata table, or null if there is none
+     */
+    @JvmStatic
+    fun readMetadata(db: SQLiteDatabase, name: String): String? {
+        return try {
+            db.rawQuery("SELECT value FROM metadata WHERE name = ?", arrayOf(name)).use {
+                if (it.moveToFirst()) it.getString(0) else null
+            }
+        } catch (e: SQLiteException) {
+            /* The metadata table is sometimes missing */
+            null
+        }
+    }
+}
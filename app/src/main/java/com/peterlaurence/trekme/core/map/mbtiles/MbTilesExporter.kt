@@ -0,0 +1,141 @@
+package com.peterlaurence.trekme.core.map.mbtiles
+
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import android.util.Log
+import com.peterlaurence.trekme.core.download.DownloadJournal
+import com.peterlaurence.trekme.core.map.Map
+import com.peterlaurence.trekme.core.map.TileDedupIndex
+import com.peterlaurence.trekme.core.map.TilePack
+import com.peterlaurence.trekme.core.map.keyCol
+import com.peterlaurence.trekme.core.map.keyLevel
+import com.peterlaurence.trekme.core.map.keyRow
+import com.peterlaurence.trekme.core.mapsource.wmts.getMapSizeInTiles
+import com.peterlaurence.trekme.core.mapsource.wmts.getTileRuns
+import com.peterlaurence.trekme.core.providers.bitmap.ImageFormat
+import com.peterlaurence.trekme.core.providers.bitmap.imageFormat
+import java.io.File
+
+/**
+ * Writes the tiles of a map, stored in folders or in a [TilePack], in a new MBTiles file.
+ *
+ * When the map was downloaded, its tiles keep their real position. Otherwise, the map is placed at
+ * the top left corner of the world, at the lowest zoom which fits.
+ */
+object MbTilesExporter {
+    private const val TAG = "MbTilesExporter"
+
+    /**
+     * Must not be called from the UI thread.
+     *
+     * @return true on success
+     */
+    @JvmStatic
+    fun export(map: Map, outputFile: File): Boolean {
+        val (layout, located) = layoutOf(map) ?: return false
+
+        outputFile.delete()
+        var db: SQLiteDatabase? = null
+        return try {
+            db = SQLiteDatabase.openOrCreateDatabase(outputFile, null)
+            db.execSQL("CREATE TABLE metadata (name TEXT, value TEXT)")
+            db.execSQL("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)")
+
+            db.beginTransaction()
+            var format: ImageFormat? = null
+            try {
+                val insert = db.compileStatement("INSERT INTO tiles VALUES (?, ?, ?, ?)")
+                forEachTile(map) { level, row, col, data ->
+                    val tile = layout.toMbTile(level, row, col)
+                    insert.bindLong(1, tile.zoom.toLong())
+                    insert.bindLong(2, tile.col.toLong())
+                    insert.bindLong(3, tile.tmsRow.toLong())
+                    insert.bindBlob(4, data)
+                    insert.executeInsert()
+                    if (format == null) format = data.imageFormat()
+                }
+
+                val metadata = mutableMapOf("name" to map.name, "type" to "baselayer", "version" to "1.1",
+                        "minzoom" to layout.zoomMin.toString(), "maxzoom" to layout.zoomMax.toString())
+                format?.let { metadata["format"] = it.extension.removePrefix(".") }
+                if (located) {
+                    metadata["bounds"] = layout.bounds().joinToString(",")
+                }
+                metadata.forEach { (name, value) ->
+                    db.execSQL("INSERT INTO metadata VALUES (?, ?)", arrayOf(name, value))
+                }
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+
+            /* The index is faster to build once all tiles are inserted */
+            db.execSQL("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)")
+            true
+        } catch (e: SQLiteException) {
+            Log.e(TAG, "Could not export ${map.name}", e)
+            outputFile.delete()
+            false
+        } finally {
+            db?.close()
+        }
+    }
+
+    /**
+     * @return the layout of the map, and whether the tiles are at their real position
+     */
+    private fun layoutOf(map: Map): Pair<MbTilesLayout, Boolean>? {
+        val spec = DownloadJournal.load(map.directory)?.spec
+        val run = spec?.let { getTileRuns(it).firstOrNull() }
+        if (spec != null && run != null) {
+            val (colCount, rowCount) = getMapSizeInTiles(spec.levelMin, spec.levelMax, spec.point1, spec.point2)
+            val layout = MbTilesLayout(spec.levelMin, spec.levelMax,
+                    (run.colLeft - run.indexColLeft) shr run.indexLevel,
+                    (run.row - run.indexRow) shr run.indexLevel, colCount, rowCount)
+            return Pair(layout, true)
+        }
+
+        val lastLevel = map.mapGson.levels.lastOrNull() ?: return null
+        val size = map.mapGson.size ?: return null
+        val colCount = (size.x + lastLevel.tile_size.x - 1) / lastLevel.tile_size.x
+        val rowCount = (size.y + lastLevel.tile_size.y - 1) / lastLevel.tile_size.y
+        var zoomMin = 0
+        while ((1 shl (zoomMin + lastLevel.level)) < maxOf(colCount, rowCount)) zoomMin++
+        return Pair(MbTilesLayout(zoomMin, zoomMin + lastLevel.level, 0, 0, colCount, rowCount), false)
+    }
+
+    private fun forEachTile(map: Map, action: (level: Int, row: Int, col: Int, data: ByteArray) -> Unit) {
+        val mapDir = map.directory
+        val tilePack = TilePack.open(mapDir)
+        if (tilePack != null) {
+            tilePack.forEach { level, row, col, data ->
+                action(level, row, col, ByteArray(data.remaining()).also { data.get(it) })
+            }
+            return
+        }
+
+        numericFiles(mapDir, true).forEach { (level, levelDir) ->
+            numericFiles(levelDir, true).forEach { (row, rowDir) ->
+                numericFiles(rowDir, false).forEach { (col, tileFile) ->
+                    action(level, row, col, tileFile.readBytes())
+                }
+            }
+        }
+
+        /* Shared tiles have no file of their own */
+        val dedupIndex = TileDedupIndex.load(mapDir) ?: return
+        val extension = map.imageExtension ?: return
+        dedupIndex.forEach { key, canonical ->
+            val canonicalFile = File(mapDir, TileDedupIndex.canonicalPath(canonical) + extension)
+            if (canonicalFile.exists()) {
+                action(keyLevel(key), keyRow(key), keyCol(key), canonicalFile.readBytes())
+            }
+        }
+    }
+
+    private fun numericFiles(dir: File, directories: Boolean): List<Pair<Int, File>> {
+        return (dir.listFiles() ?: arrayOf()).filter { it.isDirectory == directories }.mapNotNull { file ->
+            file.name.substringBefore('.').toIntOrNull()?.let { Pair(it, file) }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.peterlaurence.trekme.core.map.mbtiles
+
+import com.peterlaurence.trekme.core.map.gson.MapGson.Calibration.CalibrationPoint
+import com.peterlaurence.trekme.core.mapsource.wmts.getCalibrationPoints
+
+/**
+ * The tiles of a zoom level of an MBTiles file. Rows are numbered from the top (XYZ scheme), not
+ * from the bottom as in the file (TMS scheme).
+ */
+data class ZoomExtent(val zoom: Int, val colMin: Int, val colMax: Int, val rowMin: Int, val rowMax: Int)
+
+/**
+ * A tile as stored in an MBTiles file, with its row in the TMS scheme.
+ */
+data class MbTile(val zoom: Int, val col: Int, val tmsRow: Int)
+
+/**
+ * How the tiles of a map relate to the tiles of an MBTiles file.
+ *
+ * A level of a map has twice more tiles than the previous one in each direction, and its first tile
+ * is at index 0. So the map is anchored on the tile ([colOrigin], [rowOrigin]) of [zoomMin], and
+ * at each following zoom the origin doubles. The level of index i is the zoom [zoomMin] + i.
+ *
+ * @param colCount The number of columns at [zoomMax]
+ * @param rowCount The number of rows at [zoomMax]
+ */
+data class MbTilesLayout(val zoomMin: Int, val zoomMax: Int, val colOrigin: Int, val rowOrigin: Int,
+                         val colCount: Int, val rowCount: Int) {
+
+    fun toMbTile(level: Int, row: Int, col: Int): MbTile {
+        val zoom = zoomMin + level
+        val xyzRow = (rowOrigin shl level) + row
+        return MbTile(zoom, (colOrigin shl level) + col, (1 shl zoom) - 1 - xyzRow)
+    }
+
+    /**
+     * The calibration points of the map, in WebMercator.
+     */
+    fun calibrationPoints(): Pair<CalibrationPoint, CalibrationPoint> {
+        val colLeft = colOrigin shl (zoomMax - zoomMin)
+        val rowTop = rowOrigin shl (zoomMax - zoomMin)
+        return getCalibrationPoints(zoomMax, colLeft, rowTop, colLeft + colCount - 1, rowTop + rowCount - 1)
+    }
+
+    /**
+     * The "bounds" of the MBTiles metadata : the longitude and latitude of the left, bottom, right
+     * and top edges.
+     */
+    fun bounds(): DoubleArray {
+        val n = (1 shl zoomMax).toDouble()
+        val colLeft = colOrigin shl (zoomMax - zoomMin)
+        val rowTop = rowOrigin shl (zoomMax - zoomMin)
+        fun lon(col: Int) = col / n * 360.0 - 180.0
+        fun lat(row: Int) = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * row / n))))
+        return doubleArrayOf(lon(colLeft), lat(rowTop + rowCount), lon(colLeft + colCount), lat(rowTop))
+    }
+
+    companion object {
+        /**
+         * Find the layout which covers all the tiles of each zoom level.
+         *
+         * @return the layout, or null if there are no tiles
+         */
+        fun of(extents: List<ZoomExtent>): MbTilesLayout? {
+            if (extents.isEmpty()) return null
+            val zoomMin = extents.minBy { it.zoom }!!.zoom
+            val zoomMax = extents.maxBy { it.zoom }!!.zoom
+
+            val colOrigin = extents.map { it.colMin shr (it.zoom - zoomMin) }.min()!!
+            val rowOrigin = extents.map { it.rowMin shr (it.zoom - zoomMin) }.min()!!
+            val colEnd = extents.map { (it.colMax + 1) shl (zoomMax - it.zoom) }.max()!!
+            val rowEnd = extents.map { (it.rowMax + 1) shl (zoomMax - it.zoom) }.max()!!
+            val shift = zoomMax - zoomMin
+            return MbTilesLayout(zoomMin, zoomMax, colOrigin, rowOrigin,
+                    colEnd - (colOrigin shl shift), rowEnd - (rowOrigin shl shift))
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.peterlaurence.trekme.core.mapsource.wmts
+
+import com.peterlaurence.trekme.core.projection.MercatorProjection
+import com.peterlaurence.trekme.util.gpx.model.Track
+
+/**
+ * The area within [buffer] of one or several polylines. As for [Point], coordinates are WebMercator
+ * values, so [buffer] is also expressed in projected meters.
+ *
+ * @param polylines The points of each polyline. A polyline of a single point makes a disk.
+ */
+data class Corridor(val polylines: List<List<Point>>, val buffer: Double) {
+    /**
+     * The top-left and bottom-right corners of the bounding box of the corridor.
+     */
+    fun boundingPoints(): Pair<Point, Point> {
+        val points = polylines.flatten()
+        val xLeft = points.minBy { it.X }!!.X - buffer
+        val xRight = points.maxBy { it.X }!!.X + buffer
+        val yTop = points.maxBy { it.Y }!!.Y + buffer
+        val yBottom = points.minBy { it.Y }!!.Y - buffer
+        return Pair(Point(xLeft, yTop), Point(xRight, yBottom))
+    }
+}
+
+/**
+ * Make a [Corridor] around all the segments of a [Track].
+ *
+ * WebMercator stretches distances by 1 / cos(latitude), so the buffer is scaled at the mean
+ * latitude of the track. This is accurate enough for the span of a hike. The result is meant for
+ * [DownloadSpec.forCorridor].
+ *
+ * @param bufferMeters The width of the buffer on each side of the track, in meters on the ground
+ * @return the [Corridor], or null if the track has no point
+ */
+fun Track.toCorridor(bufferMeters: Double): Corridor? {
+    val projection = MercatorProjection()
+    val polylines = trackSegments.map { segment ->
+        segment.trackPoints.mapNotNull {
+            projection.doProjection(it.latitude, it.longitude)?.let { xy -> Point(xy[0], xy[1]) }
+        }
+    }.filter { it.isNotEmpty() }
+    if (polylines.isEmpty()) return null
+
+    val trackPoints = trackSegments.flatMap { it.trackPoints }
+    val meanLatitude = trackPoints.sumByDouble { it.latitude } / trackPoints.size
+    return Corridor(polylines, bufferMeters / Math.cos(Math.toRadians(meanLatitude)))
+}
@@ -0,0 +1,36 @@
+package com.peterlaurence.trekme.core.mapsource.wmts
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+
+/**
+ * Everything needed to build the tiles of a map download: where they come from, and the area
+ * they cover. It is saved along with the downloaded tiles so an interrupted download can be
+ * resumed later on.
+ *
+ * @param layer The real name of the layer (only relevant for [MapSource.IGN])
+ * @param corridor When set, only the tiles of this [Corridor] are downloaded. [point1] and [point2]
+ * are then the corners of its bounding box, which gives the extent of the map.
+ * @param focus When set, the tiles of each level are downloaded in rings around this point, so
+ * that the surroundings of this point are usable first (see [orderedAround]).
+ * @param packed When true, the tiles are written in a [com.peterlaurence.trekme.core.map.TilePack]
+ * instead of a file per tile
+ * @param validate When true, each tile is also checked with a bounds-only decode before being
+ * written, which catches truncated images at the cost of some CPU time
+ */
+data class DownloadSpec(val source: MapSource, val layer: String, val levelMin: Int, val levelMax: Int,
+                        val point1: Point, val point2: Point, val corridor: Corridor? = null,
+                        val focus: Point? = null, val packed: Boolean = false,
+                        val validate: Boolean = false) {
+    companion object {
+        /**
+         * The spec of a map which only covers a [Corridor], e.g one made with [toCorridor].
+         * The download form doesn't offer this mode yet: it is only available to code which
+         * builds its own spec and posts it to the download service.
+         */
+        fun forCorridor(source: MapSource, layer: String, levelMin: Int, levelMax: Int,
+                        corridor: Corridor, focus: Point? = null): DownloadSpec {
+            val (point1, point2) = corridor.boundingPoints()
+            return DownloadSpec(source, layer, levelMin, levelMax, point1, point2, corridor, focus)
+        }
+    }
+}
@@ -1,10 +1,24 @@
 package com.peterlaurence.trekme.core.mapsource.wmts
 
 import com.peterlaurence.trekme.core.map.gson.MapGson.Calibration.CalibrationPoint
+import java.util.*
 
 data class Tile(val level: Int, val row: Int, val col: Int, val indexLevel: Int, val indexRow: Int,
                 val indexCol: Int)
 
+/**
+ * Consecutive tiles of a row, from [colLeft] to [colRight] included.
+ */
+data class TileRun(val level: Int, val row: Int, val colLeft: Int, val colRight: Int, val indexLevel: Int,
+                   val indexRow: Int, val indexColLeft: Int) {
+    val size: Int
+        get() = colRight - colLeft + 1
+
+    fun tileAt(offset: Int): Tile {
+        return Tile(level, row, colLeft + offset, indexLevel, indexRow, indexColLeft + offset)
+    }
+}
+
 data class Point(val X: Double, val Y: Double)
 data class IgnMetadata(val tileSequence: Sequence<Tile>, val calibrationPoints: Pair<CalibrationPoint, CalibrationPoint>)
 
@@ -46,11 +60,14 @@ data class IgnMetadata(val tileSequence: Sequence<Tile>, val calibrationPoints:
  *
  * @param point1 A [Point] at any corner
  * @param point2 A [Point] at the opposite corner of [point1]
+ * @param isTileDone Tiles for which this returns true are left out of the sequence. This is used
+ * when resuming a download.
  */
-fun getTileSequenceAndCalibration(levelMin: Int, levelMax: Int, point1: Point, point2: Point): IgnMetadata {
+fun getTileSequenceAndCalibration(levelMin: Int, levelMax: Int, point1: Point, point2: Point,
+                                  isTileDone: (Tile) -> Boolean = { false }): IgnMetadata {
     val (XLeft, YTop, XRight, YBottom) = orderCoordinates(point1, point2)
 
-    val tileSequence = getTileSequenceAndCalibration(levelMin, levelMax, XLeft, YTop, XRight, YBottom)
+    val tileSequence = getTileSequenceAndCalibration(levelMin, levelMax, XLeft, YTop, XRight, YBottom).filterNot(isTileDone)
     val calibrationPoints = getCalibrationPoints(levelMin, XLeft, YTop, XRight, YBottom)
 
     return IgnMetadata(tileSequence, calibrationPoints)
@@ -62,6 +79,183 @@ fun getNumberOfTiles(levelMin: Int, levelMax: Int, point1: Point, point2: Point)
     return getNumberOfTiles(levelMin, levelMax, XLeft, YTop, XRight, YBottom)
 }
 
+/**
+ * The same tiles as [getTileSequenceAndCalibration], in the same order, but as one [TileRun] per row.
+ * This is the form used to distribute the tiles among download threads.
+ */
+fun getTileRuns(levelMin: Int, levelMax: Int, point1: Point, point2: Point): List<TileRun> {
+    val (XLeft, YTop, XRight, YBottom) = orderCoordinates(point1, point2)
+
+    val runs = mutableListOf<TileRun>()
+    var area = getLevelArea(levelMin, XLeft, YTop, XRight, YBottom)
+    for (level in levelMin..levelMax) {
+        if (level > levelMin) area = area.nextLevel()
+        for ((indexRow, row) in (area.rowTop..area.rowBottom).withIndex()) {
+            runs.add(TileRun(level, row, area.colLeft, area.colRight, level - levelMin, indexRow, 0))
+        }
+    }
+    return runs
+}
+
+/**
+ * The tiles of a [DownloadSpec], as one or several [TileRun] per row.
+ */
+fun getTileRuns(spec: DownloadSpec): List<TileRun> {
+    val runs = if (spec.corridor != null) {
+        getCorridorTileRuns(spec.levelMin, spec.levelMax, spec.corridor)
+    } else {
+        getTileRuns(spec.levelMin, spec.levelMax, spec.point1, spec.point2)
+    }
+    return if (spec.focus != null) runs.orderedAround(spec.focus) else runs
+}
+
+/**
+ * Reorder the tiles so that each level is downloaded in square rings around the tile which
+ * contains [focus], starting with this tile. Levels are still in increasing order, so when the
+ * download is interrupted, the lower levels are complete and the higher levels cover the
+ * surroundings of [focus] rather than a band at the top of the area.
+ *
+ * Each ring is made of its top row, then its two sides, then its bottom row. Consecutive tiles of
+ * a row are merged back into runs.
+ */
+fun List<TileRun>.orderedAround(focus: Point): List<TileRun> {
+    val result = mutableListOf<TileRun>()
+    for ((level, levelRuns) in groupBy { it.level }.toSortedMap()) {
+        val tileSize = getTileInMetersForZoom(level)
+        val focusCol = Math.floor((focus.X - X0) / tileSize).toInt()
+        val focusRow = Math.floor((Y0 - focus.Y) / tileSize).toInt()
+
+        val tiles = levelRuns.flatMap { run -> (0 until run.size).map { run.tileAt(it) } }
+        val sorted = tiles.sortedWith(compareBy<Tile>(
+                { Math.max(Math.abs(it.col - focusCol), Math.abs(it.row - focusRow)) },
+                { ringSide(it, focusCol, focusRow) },
+                { it.row },
+                { it.col }))
+
+        var runStart: Tile? = null
+        var runEnd: Tile? = null
+        for (tile in sorted) {
+            if (runStart != null && runEnd != null && tile.row == runEnd.row && tile.col == runEnd.col + 1) {
+                runEnd = tile
+                continue
+            }
+            if (runStart != null && runEnd != null) result.add(runOf(runStart, runEnd))
+            runStart = tile
+            runEnd = tile
+        }
+        if (runStart != null && runEnd != null) result.add(runOf(runStart, runEnd))
+    }
+    return result
+}
+
+/**
+ * 0 for the top row of the ring of [tile], 1 for its sides, 2 for its bottom row.
+ */
+private fun ringSide(tile: Tile, focusCol: Int, focusRow: Int): Int {
+    val ring = Math.max(Math.abs(tile.col - focusCol), Math.abs(tile.row - focusRow))
+    return when (tile.row) {
+        focusRow - ring -> 0
+        focusRow + ring -> 2
+        else -> 1
+    }
+}
+
+private fun runOf(first: Tile, last: Tile): TileRun {
+    return TileRun(first.level, first.row, first.col, last.col, first.indexLevel, first.indexRow, first.indexCol)
+}
+
+fun getNumberOfTiles(spec: DownloadSpec): Long {
+    return if (spec.corridor != null) {
+        getCorridorTileRuns(spec.levelMin, spec.levelMax, spec.corridor).fold(0L) { acc, run -> acc + run.size }
+    } else {
+        getNumberOfTiles(spec.levelMin, spec.levelMax, spec.point1, spec.point2)
+    }
+}
+
+/**
+ * The tiles which intersect a [Corridor], at each level. They are a subset of the tiles of the
+ * bounding box of the corridor (as given by [getTileRuns]), with the same indexes. So the map has
+ * the extent of the bounding box, and tiles away from the track are simply missing.
+ *
+ * A tile is kept when its distance to one of the segments of the corridor is at most the buffer.
+ * Each row gets one [TileRun] for each group of consecutive tiles.
+ */
+fun getCorridorTileRuns(levelMin: Int, levelMax: Int, corridor: Corridor): List<TileRun> {
+    val (point1, point2) = corridor.boundingPoints()
+    val (XLeft, YTop, XRight, YBottom) = orderCoordinates(point1, point2)
+
+    val runs = mutableListOf<TileRun>()
+    var area = getLevelArea(levelMin, XLeft, YTop, XRight, YBottom)
+    for (level in levelMin..levelMax) {
+        if (level > levelMin) area = area.nextLevel()
+        val tileSize = getTileInMetersForZoom(level)
+
+        /* For each row, the columns of the tiles to keep, relative to the left of the area */
+        val rows = Array(area.rowBottom - area.rowTop + 1) { BitSet() }
+        for (polyline in corridor.polylines) {
+            if (polyline.size == 1) {
+                markSegment(polyline[0], polyline[0], corridor.buffer, area, tileSize, rows)
+            }
+            for (i in 0 until polyline.size - 1) {
+                markSegment(polyline[i], polyline[i + 1], corridor.buffer, area, tileSize, rows)
+            }
+        }
+
+        for ((indexRow, cols) in rows.withIndex()) {
+            var start = cols.nextSetBit(0)
+            while (start >= 0) {
+                val end = cols.nextClearBit(start)
+                runs.add(TileRun(level, area.rowTop + indexRow, area.colLeft + start,
+                        area.colLeft + end - 1, level - levelMin, indexRow, start))
+                start = cols.nextSetBit(end)
+            }
+        }
+    }
+    return runs
+}
+
+/**
+ * Gives each tile of an area a unique and stable index in [0, [size]), whatever the order in which
+ * the tiles are produced. Tiles are numbered level by level, then row by row.
+ */
+class TileIndex internal constructor(private val offsets: LongArray, private val widths: IntArray) {
+    val size: Long
+        get() = offsets.last()
+
+    fun indexOf(tile: Tile): Long {
+        return offsets[tile.indexLevel] + tile.indexRow.toLong() * widths[tile.indexLevel] + tile.indexCol
+    }
+}
+
+fun getTileIndex(levelMin: Int, levelMax: Int, point1: Point, point2: Point): TileIndex {
+    val (XLeft, YTop, XRight, YBottom) = orderCoordinates(point1, point2)
+
+    val levelCount = levelMax - levelMin + 1
+    val offsets = LongArray(levelCount + 1)
+    val widths = IntArray(levelCount)
+    var area = getLevelArea(levelMin, XLeft, YTop, XRight, YBottom)
+    for (i in 0 until levelCount) {
+        if (i > 0) area = area.nextLevel()
+        widths[i] = area.colRight - area.colLeft + 1
+        offsets[i + 1] = offsets[i] + (area.rowBottom - area.rowTop + 1).toLong() * widths[i]
+    }
+    return TileIndex(offsets, widths)
+}
+
+/**
+ * The number of columns and rows of tiles of the map at [levelMax]. As some tiles may be missing,
+ * this is the only reliable way to get the size of the map.
+ */
+fun getMapSizeInTiles(levelMin: Int, levelMax: Int, point1: Point, point2: Point): Pair<Int, Int> {
+    val (XLeft, YTop, XRight, YBottom) = orderCoordinates(point1, point2)
+
+    var area = getLevelArea(levelMin, XLeft, YTop, XRight, YBottom)
+    for (level in (levelMin + 1)..levelMax) {
+        area = area.nextLevel()
+    }
+    return Pair(area.colRight - area.colLeft + 1, area.rowBottom - area.rowTop + 1)
+}
+
 /**
  * One transaction is equivalent to [TILES_PER_TRANSACTION] tiles.
  */
@@ -138,6 +332,15 @@ private fun getNumberOfTiles(levelMin: Int, levelMax: Int, XLeft: Double, YTop:
 private fun getCalibrationPoints(level: Int, XLeft: Double, YTop: Double, XRight: Double, YBottom: Double):
         Pair<CalibrationPoint, CalibrationPoint> {
     val (colLeft, rowTop, colRight, rowBottom) = getLevelArea(level, XLeft, YTop, XRight, YBottom)
+    return getCalibrationPoints(level, colLeft, rowTop, colRight, rowBottom)
+}
+
+/**
+ * The calibration points of a map made of the given tiles of a [level], from the top left corner of
+ * the tile ([colLeft], [rowTop]) to the bottom right corner of the tile ([colRight], [rowBottom]).
+ */
+fun getCalibrationPoints(level: Int, colLeft: Int, rowTop: Int, colRight: Int, rowBottom: Int):
+        Pair<CalibrationPoint, CalibrationPoint> {
     val tileSize = getTileInMetersForZoom(level)
 
     val topLeftCalibrationPoint = CalibrationPoint()
@@ -157,6 +360,13 @@ private fun getCalibrationPoints(level: Int, XLeft: Double, YTop: Double, XRight
 
 private data class LevelArea(val colLeft: Int, val rowTop: Int, val colRight: Int, val rowBottom: Int)
 
+/**
+ * The area covered at the next level by the tiles of this [LevelArea].
+ */
+private fun LevelArea.nextLevel(): LevelArea {
+    return LevelArea(colLeft * 2, rowTop * 2, (colRight + 1) * 2 - 1, (rowBottom + 1) * 2 - 1)
+}
+
 private fun getLevelArea(level: Int, XLeft: Double, YTop: Double, XRight: Double, YBottom: Double): LevelArea {
     val tileSize = getTileInMetersForZoom(level)
     val colLeft = Math.floor((XLeft - X0) / tileSize).toInt()
@@ -166,6 +376,115 @@ private fun getLevelArea(level: Int, XLeft: Double, YTop: Double, XRight: Double
     return LevelArea(colLeft, rowTop, colRight, rowBottom)
 }
 
+/**
+ * Mark the tiles of [area] which are within [buffer] of the segment [a]-[b]. Only the tiles close
+ * to the bounding box of the segment are tested.
+ */
+private fun markSegment(a: Point, b: Point, buffer: Double, area: LevelArea, tileSize: Double,
+                        rows: Array<BitSet>) {
+    val yMax = Math.max(a.Y, b.Y) + buffer
+    val yMin = Math.min(a.Y, b.Y) - buffer
+    val rowFirst = Math.max(area.rowTop, Math.floor((Y0 - yMax) / tileSize).toInt())
+    val rowLast = Math.min(area.rowBottom, Math.floor((Y0 - yMin) / tileSize).toInt())
+
+    for (row in rowFirst..rowLast) {
+        val top = Y0 - row * tileSize
+        val bottom = top - tileSize
+
+        /* The horizontal extent of the part of the segment which may be close to this row */
+        val (xStart, xEnd) = clipToBand(a, b, bottom - buffer, top + buffer) ?: continue
+        val colFirst = Math.max(area.colLeft, Math.floor((xStart - buffer - X0) / tileSize).toInt())
+        val colLast = Math.min(area.colRight, Math.floor((xEnd + buffer - X0) / tileSize).toInt())
+
+        val cols = rows[row - area.rowTop]
+        for (col in colFirst..colLast) {
+            val index = col - area.colLeft
+            if (cols.get(index)) continue
+            val left = X0 + col * tileSize
+            if (segmentToRectDistance(a, b, left, bottom, left + tileSize, top) <= buffer) {
+                cols.set(index)
+            }
+        }
+    }
+}
+
+/**
+ * @return the min and max X of the part of the segment [a]-[b] between [yMin] and [yMax], or null
+ * if there is none
+ */
+private fun clipToBand(a: Point, b: Point, yMin: Double, yMax: Double): Pair<Double, Double>? {
+    if (a.Y == b.Y) {
+        return if (a.Y in yMin..yMax) Pair(Math.min(a.X, b.X), Math.max(a.X, b.X)) else null
+    }
+    val t1 = (yMin - a.Y) / (b.Y - a.Y)
+    val t2 = (yMax - a.Y) / (b.Y - a.Y)
+    val tStart = Math.max(0.0, Math.min(t1, t2))
+    val tEnd = Math.min(1.0, Math.max(t1, t2))
+    if (tStart > tEnd) return null
+    val x1 = a.X + tStart * (b.X - a.X)
+    val x2 = a.X + tEnd * (b.X - a.X)
+    return Pair(Math.min(x1, x2), Math.max(x1, x2))
+}
+
+private fun segmentToRectDistance(a: Point, b: Point, left: Double, bottom: Double, right: Double,
+                                  top: Double): Double {
+    if (segmentIntersectsRect(a, b, left, bottom, right, top)) return 0.0
+
+    /* Otherwise, the closest points are an end of the segment or a corner of the rectangle */
+    return doubleArrayOf(
+            pointToRectDistance(a, left, bottom, right, top),
+            pointToRectDistance(b, left, bottom, right, top),
+            pointToSegmentDistance(left, bottom, a, b),
+            pointToSegmentDistance(left, top, a, b),
+            pointToSegmentDistance(right, bottom, a, b),
+            pointToSegmentDistance(right, top, a, b)
+    ).min()!!
+}
+
+/**
+ * Liang-Barsky clipping of the segment [a]-[b] by the rectangle.
+ */
+private fun segmentIntersectsRect(a: Point, b: Point, left: Double, bottom: Double, right: Double,
+                                  top: Double): Boolean {
+    val dx = b.X - a.X
+    val dy = b.Y - a.Y
+    var tStart = 0.0
+    var tEnd = 1.0
+    val p = doubleArrayOf(-dx, dx, -dy, dy)
+    val q = doubleArrayOf(a.X - left, right - a.X, a.Y - bottom, top - a.Y)
+    for (i in 0..3) {
+        if (p[i] == 0.0) {
+            if (q[i] < 0) return false
+            continue
+        }
+        val t = q[i] / p[i]
+        if (p[i] < 0) {
+            if (t > tEnd) return false
+            if (t > tStart) tStart = t
+        } else {
+            if (t < tStart) return false
+            if (t < tEnd) tEnd = t
+        }
+    }
+    return true
+}
+
+private fun pointToRectDistance(p: Point, left: Double, bottom: Double, right: Double, top: Double): Double {
+    val dx = maxOf(left - p.X, 0.0, p.X - right)
+    val dy = maxOf(bottom - p.Y, 0.0, p.Y - top)
+    return Math.hypot(dx, dy)
+}
+
+private fun pointToSegmentDistance(x: Double, y: Double, a: Point, b: Point): Double {
+    val dx = b.X - a.X
+    val dy = b.Y - a.Y
+    val lengthSquared = dx * dx + dy * dy
+    val t = if (lengthSquared == 0.0) 0.0 else {
+        Math.max(0.0, Math.min(1.0, ((x - a.X) * dx + (y - a.Y) * dy) / lengthSquared))
+    }
+    return Math.hypot(x - (a.X + t * dx), y - (a.Y + t * dy))
+}
+
 /**
  * At level 0, an IGN map is a square of 2 * |X0| side length (in meters).
  * And at this level, it is made of 1 tile.
@@ -0,0 +1,40 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+
+/**
+ * Wraps a [GenericBitmapProvider] so that the tiles it fetches are kept in the [TileDiskCache], on
+ * top of the [TileBytesCache]. Browsing an area again doesn't make any request, even after the
+ * application restarted.
+ *
+ * @param source The name of the server, e.g "IGN"
+ * @param layer The layer the tiles belong to, if the server has several of them
+ */
+class CachedBitmapProvider(private val provider: GenericBitmapProvider, private val source: String,
+                           private val layer: String = "") {
+
+    /**
+     * Same as [GenericBitmapProvider.getBitmap]. Without a [Context], the disk cache can't be used.
+     */
+    fun getBitmap(context: Context?, level: Int, row: Int, col: Int): Bitmap? {
+        if (context == null) return provider.getBitmap(level, row, col)
+
+        val url = provider.urlTileBuilder.build(level, row, col)
+        val key = TileDiskCache.key(source, layer, level, row, col)
+        val bytes = TileBytesCache.get(url) ?: TileDiskCache.shared(context).getOrFetch(key) {
+            /* Don't keep error messages */
+            provider.getBytes(level, row, col)?.takeIf { it.imageFormat() != null }
+        }?.also {
+            TileBytesCache.put(url, it)
+        } ?: return null
+
+        return try {
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.size, provider.bitmapLoadingOptions)
+        } catch (e: Exception) {
+            e.printStackTrace()
+            null
+        }
+    }
+}
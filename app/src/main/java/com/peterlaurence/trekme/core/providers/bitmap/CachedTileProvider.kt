@@ -0,0 +1,15 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+import android.graphics.Bitmap
+
+/**
+ * A provider which keeps decoded tiles in memory, and can give those without decoding anything.
+ * A bitmap given by [getCachedBitmap] must be given back to the BitmapRecycler of the provider once
+ * it's no longer displayed.
+ */
+interface CachedTileProvider {
+    /**
+     * @return the decoded tile, or null if it isn't in memory
+     */
+    fun getCachedBitmap(level: Int, row: Int, col: Int): Bitmap?
+}
@@ -0,0 +1,28 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+/**
+ * The image formats that tile servers are known to send. Each one is identified by the first bytes
+ * of the encoded image (its "magic number"), so the format can be deduced without decoding.
+ */
+enum class ImageFormat(val extension: String) {
+    JPEG(".jpg"), PNG(".png"), WEBP(".webp"), GIF(".gif")
+}
+
+/**
+ * Deduce the [ImageFormat] of an encoded image from its header.
+ *
+ * @param length the number of valid bytes in the array
+ * @return the [ImageFormat], or null if the content isn't a supported image (e.g an xml error)
+ */
+fun ByteArray.imageFormat(length: Int = size): ImageFormat? {
+    fun at(i: Int) = this[i].toInt() and 0xFF
+
+    return when {
+        length >= 3 && at(0) == 0xFF && at(1) == 0xD8 && at(2) == 0xFF -> ImageFormat.JPEG
+        length >= 8 && at(0) == 0x89 && at(1) == 'P'.toInt() && at(2) == 'N'.toInt() && at(3) == 'G'.toInt() -> ImageFormat.PNG
+        length >= 12 && at(0) == 'R'.toInt() && at(1) == 'I'.toInt() && at(2) == 'F'.toInt() && at(3) == 'F'.toInt()
+                && at(8) == 'W'.toInt() && at(9) == 'E'.toInt() && at(10) == 'B'.toInt() && at(11) == 'P'.toInt() -> ImageFormat.WEBP
+        length >= 4 && at(0) == 'G'.toInt() && at(1) == 'I'.toInt() && at(2) == 'F'.toInt() && at(3) == '8'.toInt() -> ImageFormat.GIF
+        else -> null
+    }
+}
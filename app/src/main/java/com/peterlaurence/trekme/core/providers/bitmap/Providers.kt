@@ -3,9 +3,9 @@ package com.peterlaurence.trekme.core.providers.bitmap
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.util.Base64
+import com.peterlaurence.trekme.core.providers.http.TileHttpEngine
+import com.peterlaurence.trekme.core.providers.http.TileResponse
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilder
-import java.io.BufferedInputStream
-import java.net.HttpURLConnection
 import java.net.URL
 
 
@@ -13,8 +13,15 @@ import java.net.URL
  * Given the level, row and col numbers, a [GenericBitmapProvider] returns a [Bitmap] using the
  * provided [UrlTileBuilder] to build an [URL] and make an HTTP request.
  * Here is also defined the kind of provider used for each particular case (IGN, USGS, etc).
+ *
+ * When the tile is only meant to be stored (e.g when downloading a map), [getBytes] should be
+ * preferred over [getBitmap], as it skips the decoding step.
+ *
+ * All providers fetch tiles through the [TileHttpEngine.shared] engine, so they share the same
+ * connection pool.
  */
-open class GenericBitmapProvider protected constructor(open val urlTileBuilder: UrlTileBuilder, options: BitmapFactory.Options? = null) {
+open class GenericBitmapProvider protected constructor(open val urlTileBuilder: UrlTileBuilder, options: BitmapFactory.Options? = null,
+                                                       private val engine: TileHttpEngine = TileHttpEngine.shared) {
     companion object {
         fun getBitmapProviderIgn(urlTileBuilder: UrlTileBuilder, ignUser: String, ignPwd: String): GenericBitmapProvider {
             return GenericBitmapProviderAuth(urlTileBuilder, ignUser, ignPwd)
@@ -35,27 +42,50 @@ open class GenericBitmapProvider protected constructor(open val urlTileBuilder:
 
     var bitmapLoadingOptions = options ?: BitmapFactory.Options()
 
+    /**
+     * The request properties set on each request.
+     */
+    protected open val requestHeaders: Map<String, String> = emptyMap()
+
     init {
         bitmapLoadingOptions.inPreferredConfig = Bitmap.Config.RGB_565
     }
 
+    /**
+     * The tiles received are kept in the [TileBytesCache], so that displaying them again doesn't
+     * need a new request.
+     */
     open fun getBitmap(level: Int, row: Int, col: Int): Bitmap? {
-        val url = URL(urlTileBuilder.build(level, row, col))
-        val connection = url.openConnection() as HttpURLConnection
-        connection.doInput = true
-
+        val url = urlTileBuilder.build(level, row, col)
+        val bytes = TileBytesCache.get(url) ?: getBytes(level, row, col)?.also {
+            /* Don't keep error messages */
+            if (it.imageFormat() != null) TileBytesCache.put(url, it)
+        } ?: return null
         return try {
-            connection.connect()
-            val inputStream = BufferedInputStream(connection.inputStream)
-            inputStream.use {
-                BitmapFactory.decodeStream(inputStream, null, bitmapLoadingOptions)
-            }
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.size, bitmapLoadingOptions)
         } catch (e: Exception) {
             e.printStackTrace()
             null
         }
-        /* Don't try to disconnect the connection on failure or in finally block, as other
-         * threads might be using connections to the same hostname. */
+    }
+
+    /**
+     * Get the raw body of the HTTP response, as it was sent by the server.
+     *
+     * @return the bytes of the encoded image, or null if the request failed
+     */
+    open fun getBytes(level: Int, row: Int, col: Int): ByteArray? {
+        return fetch(level, row, col).data
+    }
+
+    /**
+     * Same as [getBytes], but also gives the details of a failure.
+     *
+     * @param paced Whether the request is paced by the rate limiter of the source (see
+     * [TileHttpEngine.setRateLimiter]). Downloads are, browsing isn't.
+     */
+    open fun fetch(level: Int, row: Int, col: Int, paced: Boolean = false): TileResponse {
+        return engine.fetch(urlTileBuilder.build(level, row, col), requestHeaders, paced)
     }
 
     open fun setBitmapOptions(options: BitmapFactory.Options) {
@@ -69,32 +99,12 @@ open class GenericBitmapProvider protected constructor(open val urlTileBuilder:
 class GenericBitmapProviderAuth(override val urlTileBuilder: UrlTileBuilder, private val user: String, private val pwd: String,
                                 options: BitmapFactory.Options? = null) : GenericBitmapProvider(urlTileBuilder, options) {
 
-    override fun getBitmap(level: Int, row: Int, col: Int): Bitmap? {
-
-        val url = URL(urlTileBuilder.build(level, row, col))
-        val connection = url.openConnection() as HttpURLConnection
-        connection.doInput = true
-
-        /* Set authentication */
-        connection.setAuth()
+    /* The authentication header is computed once for all */
+    override val requestHeaders: Map<String, String> = mapOf("Authorization" to makeAuthHeader())
 
-        return try {
-            connection.connect()
-            val inputStream = BufferedInputStream(connection.inputStream)
-            val myBitmap = BitmapFactory.decodeStream(inputStream, null, bitmapLoadingOptions)
-            inputStream.close()
-            myBitmap
-        } catch (e: Exception) {
-            connection.disconnect()
-            e.printStackTrace()
-            null
-        }
-    }
-
-    private fun HttpURLConnection.setAuth() {
+    private fun makeAuthHeader(): String {
         val authString = "$user:$pwd"
         val authStringEnc = String(Base64.encode(authString.toByteArray(), Base64.NO_WRAP))
-        setRequestProperty("Authorization", "Basic $authStringEnc")
+        return "Basic $authStringEnc"
     }
 }
-
@@ -0,0 +1,153 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+import android.app.ActivityManager
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.graphics.Bitmap
+import android.util.LruCache
+import java.util.*
+
+/**
+ * A memory cache of decoded tiles, shared by all maps. A tile is identified by the id of its map and
+ * by a key built from its level, row and column.
+ *
+ * The size of the cache is given in bytes. It is an eighth of the memory available to the
+ * application, and is reduced when the system is short of memory, along with the
+ * [TileBytesCache].
+ *
+ * A bitmap of the cache may be displayed by a TileView when it is evicted, so it can't be recycled
+ * right away. Each time a bitmap is given by [get] or [put], it is counted as being displayed
+ * once more. [release] is the other side, and must be called when the TileView no longer uses the
+ * bitmap. A bitmap goes to the [TileBitmapPool] only when it is out of the cache and no longer
+ * displayed.
+ */
+object TileBitmapCache {
+    private data class Key(val mapId: Int, val tileKey: Long)
+
+    private class Usage(var count: Int, var cached: Boolean)
+
+    private val usages = WeakHashMap<Bitmap, Usage>()
+    private var cache: LruCache<Key, Bitmap>? = null
+
+    /**
+     * The number of tiles given by [get]. Placeholders read with [getIfCached] aren't counted.
+     */
+    var hitCount = 0
+        @Synchronized get
+        private set
+
+    /**
+     * The number of tiles that [get] didn't find.
+     */
+    var missCount = 0
+        @Synchronized get
+        private set
+
+    /**
+     * @return the cached bitmap, or null if the tile must be decoded
+     */
+    @JvmStatic
+    @Synchronized
+    fun get(context: Context, mapId: Int, tileKey: Long): Bitmap? {
+        val bitmap = acquire(getCache(context), mapId, tileKey)
+        if (bitmap != null) hitCount++ else missCount++
+        return bitmap
+    }
+
+    /**
+     * Same as [get], but for tiles only displayed if they happen to be in the cache.
+     */
+    @JvmStatic
+    @Synchronized
+    fun getIfCached(mapId: Int, tileKey: Long): Bitmap? {
+        return acquire(cache ?: return null, mapId, tileKey)
+    }
+
+    private fun acquire(cache: LruCache<Key, Bitmap>, mapId: Int, tileKey: Long): Bitmap? {
+        val bitmap = cache.get(Key(mapId, tileKey)) ?: return null
+        usages[bitmap]?.let { it.count++ }
+        return bitmap
+    }
+
+    /**
+     * Add a freshly decoded bitmap to the cache. It is counted as displayed.
+     */
+    @JvmStatic
+    @Synchronized
+    fun put(context: Context, mapId: Int, tileKey: Long, bitmap: Bitmap) {
+        usages[bitmap] = Usage(1, true)
+        getCache(context).put(Key(mapId, tileKey), bitmap)
+    }
+
+    /**
+     * The given bitmap is no longer displayed at one place. Bitmaps unknown to the cache go to the
+     * [TileBitmapPool] right away.
+     */
+    @JvmStatic
+    @Synchronized
+    fun release(bitmap: Bitmap) {
+        val usage = usages[bitmap]
+        if (usage != null) {
+            usage.count--
+            if (usage.count > 0 || usage.cached) return
+            usages.remove(bitmap)
+        }
+        TileBitmapPool.put(bitmap)
+    }
+
+    /**
+     * Remove all the tiles of a map, e.g when its tiles have changed.
+     */
+    @JvmStatic
+    @Synchronized
+    fun evictMap(mapId: Int) {
+        val cache = cache ?: return
+        cache.snapshot().keys.filter { it.mapId == mapId }.forEach { cache.remove(it) }
+    }
+
+    @Synchronized
+    private fun trim(level: Int) {
+        val cache = cache ?: return
+        when {
+            level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> {
+                cache.evictAll()
+                TileBitmapPool.clear()
+                TileBytesCache.evictAll()
+            }
+            level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> {
+                cache.trimToSize(cache.maxSize() / 2)
+                TileBytesCache.trimToHalf()
+            }
+        }
+    }
+
+    private fun getCache(context: Context): LruCache<Key, Bitmap> {
+        cache?.let { return it }
+
+        val appContext = context.applicationContext
+        val activityManager = appContext.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        val maxSize = activityManager.memoryClass * 1024 * 1024 / 8
+
+        appContext.registerComponentCallbacks(object : ComponentCallbacks2 {
+            override fun onTrimMemory(level: Int) = trim(level)
+
+            override fun onLowMemory() = trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+
+            override fun onConfigurationChanged(newConfig: Configuration) {}
+        })
+
+        return object : LruCache<Key, Bitmap>(maxSize) {
+            override fun sizeOf(key: Key, value: Bitmap) = value.allocationByteCount
+
+            override fun entryRemoved(evicted: Boolean, key: Key, oldValue: Bitmap, newValue: Bitmap?) {
+                val usage = usages[oldValue] ?: return
+                usage.cached = false
+                if (usage.count == 0) {
+                    usages.remove(oldValue)
+                    TileBitmapPool.put(oldValue)
+                }
+            }
+        }.also { cache = it }
+    }
+}
@@ -0,0 +1,103 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+
+/**
+ * A pool of tile bitmaps that are no longer used, so that decoding a tile can reuse one through
+ * [BitmapFactory.Options.inBitmap] instead of allocating a new bitmap.
+ *
+ * Bitmaps are grouped by width, height and config, as a tile can only be decoded into a bitmap of
+ * the same size. The pool holds at most [MAX_SIZE] bytes, bitmaps which don't fit are recycled.
+ */
+object TileBitmapPool {
+    private const val MAX_SIZE = 8 * 1024 * 1024
+
+    private val buckets = HashMap<Long, ArrayList<Bitmap>>()
+    private var size = 0
+
+    /**
+     * The number of tiles decoded into a bitmap of the pool.
+     */
+    var reuseCount = 0
+        @Synchronized get
+        private set
+
+    /**
+     * The number of tiles for which a new bitmap had to be allocated.
+     */
+    var allocationCount = 0
+        @Synchronized get
+        private set
+
+    /**
+     * @return a bitmap to decode into, or null if there is none of this size
+     */
+    @JvmStatic
+    @Synchronized
+    fun get(width: Int, height: Int, config: Bitmap.Config): Bitmap? {
+        val bucket = buckets[bucketOf(width, height, config)]
+        if (bucket == null || bucket.isEmpty()) {
+            allocationCount++
+            return null
+        }
+        val bitmap = bucket.removeAt(bucket.size - 1)
+        size -= bitmap.allocationByteCount
+        reuseCount++
+        return bitmap
+    }
+
+    /**
+     * Give back a bitmap which is no longer displayed.
+     */
+    @JvmStatic
+    @Synchronized
+    fun put(bitmap: Bitmap) {
+        if (bitmap.isRecycled) return
+        val bytes = bitmap.allocationByteCount
+        val config: Bitmap.Config? = bitmap.config
+        if (config == null || !bitmap.isMutable || size + bytes > MAX_SIZE) {
+            bitmap.recycle()
+            return
+        }
+        buckets.getOrPut(bucketOf(bitmap.width, bitmap.height, config)) { ArrayList() }.add(bitmap)
+        size += bytes
+    }
+
+    @JvmStatic
+    @Synchronized
+    fun clear() {
+        buckets.values.forEach { bucket -> bucket.forEach { it.recycle() } }
+        buckets.clear()
+        size = 0
+    }
+
+    /**
+     * Decode an encoded tile, reusing a bitmap of the pool when possible.
+     *
+     * @param options The options of the calling thread. Their [BitmapFactory.Options.inMutable]
+     * must be true, or the bitmap couldn't come back to the pool later on.
+     * @return the bitmap, or null if the tile couldn't be decoded
+     */
+    @JvmStatic
+    fun decodeByteArray(data: ByteArray, width: Int, height: Int, options: BitmapFactory.Options): Bitmap? {
+        val reusable = get(width, height, options.inPreferredConfig)
+        options.inBitmap = reusable
+        return try {
+            BitmapFactory.decodeByteArray(data, 0, data.size, options).also {
+                if (it == null && reusable != null) put(reusable)
+            }
+        } catch (e: IllegalArgumentException) {
+            /* The tile doesn't have the expected size */
+            if (reusable != null) put(reusable)
+            options.inBitmap = null
+            BitmapFactory.decodeByteArray(data, 0, data.size, options)
+        } finally {
+            options.inBitmap = null
+        }
+    }
+
+    private fun bucketOf(width: Int, height: Int, config: Bitmap.Config): Long {
+        return (width.toLong() shl 36) or (height.toLong() shl 8) or config.ordinal.toLong()
+    }
+}
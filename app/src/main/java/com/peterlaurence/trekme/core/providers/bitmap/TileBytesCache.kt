@@ -0,0 +1,62 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+import android.util.LruCache
+import java.io.File
+import java.io.IOException
+
+/**
+ * A memory cache of encoded tiles, as read from a file or received from a server. It sits behind
+ * the [TileBitmapCache] : an encoded tile is about an eighth of its decoded bitmap, so many more
+ * tiles fit in the same memory, and a tile evicted from the [TileBitmapCache] can be decoded again
+ * without any I/O.
+ *
+ * Tiles are identified by where they come from : the path of their file, or their URL. The size of
+ * the cache is given in bytes, and is a sixteenth of the maximum heap size.
+ */
+object TileBytesCache {
+    private val cache = object : LruCache<String, ByteArray>((Runtime.getRuntime().maxMemory() / 16).toInt()) {
+        override fun sizeOf(key: String, value: ByteArray) = value.size
+    }
+
+    val hitCount: Int
+        get() = cache.hitCount()
+
+    val missCount: Int
+        get() = cache.missCount()
+
+    @JvmStatic
+    fun get(key: String): ByteArray? = cache.get(key)
+
+    @JvmStatic
+    fun put(key: String, bytes: ByteArray) {
+        cache.put(key, bytes)
+    }
+
+    /**
+     * Get the content of a tile file, reading it only if it isn't cached.
+     *
+     * @return the bytes, or null if the file can't be read
+     */
+    @JvmStatic
+    fun getOrRead(file: File): ByteArray? {
+        val key = file.path
+        cache.get(key)?.let { return it }
+        return try {
+            file.readBytes().also { cache.put(key, it) }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    /**
+     * Remove the tiles whose path or URL starts with the given prefix, e.g all tiles of a map.
+     */
+    @JvmStatic
+    fun evictPrefix(prefix: String) {
+        cache.snapshot().keys.filter { it.startsWith(prefix) }.forEach { cache.remove(it) }
+    }
+
+    fun trimToHalf() = cache.trimToSize(cache.maxSize() / 2)
+
+    fun evictAll() = cache.evictAll()
+}
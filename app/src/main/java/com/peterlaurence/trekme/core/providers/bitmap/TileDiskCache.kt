@@ -0,0 +1,184 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+import android.content.Context
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A cache of encoded tiles on disk, for tiles which are fetched from a server. Each tile is a file
+ * of [dir]. When the size of the files exceeds [maxSize], the least recently used tiles are
+ * removed. The last use of a tile is its modification date, so the order survives a restart.
+ *
+ * Through [getOrFetch], a tile requested while it's already being fetched is fetched only once.
+ */
+class TileDiskCache(private val dir: File, private val maxSize: Long) {
+    /* The size of each tile, from the least recently used */
+    private val entries = LinkedHashMap<String, Long>(0, 0.75f, true)
+    private var size = 0L
+    private val inFlight = HashMap<String, FutureTask<ByteArray?>>()
+
+    private val hits = AtomicInteger()
+    private val misses = AtomicInteger()
+    private val coalesced = AtomicInteger()
+
+    /**
+     * The number of tiles read from the disk.
+     */
+    val hitCount: Int
+        get() = hits.get()
+
+    /**
+     * The number of tiles which had to be fetched.
+     */
+    val missCount: Int
+        get() = misses.get()
+
+    /**
+     * The number of requests which waited for the same tile to be fetched, instead of fetching it.
+     */
+    val coalescedCount: Int
+        get() = coalesced.get()
+
+    val hitRatio: Float
+        get() {
+            val total = hitCount + missCount
+            return if (total == 0) 0f else hitCount.toFloat() / total
+        }
+
+    init {
+        dir.mkdirs()
+        (dir.listFiles() ?: arrayOf()).filter { it.isFile && !it.name.endsWith(TMP_SUFFIX) }
+                .sortedBy { it.lastModified() }.forEach {
+                    entries[it.name] = it.length()
+                    size += it.length()
+                }
+    }
+
+    /**
+     * @return the cached tile, or null if it's not in the cache
+     */
+    fun get(key: String): ByteArray? {
+        val file = File(dir, key)
+        synchronized(entries) {
+            entries[key] ?: return null
+        }
+        return try {
+            file.readBytes().also {
+                file.setLastModified(System.currentTimeMillis())
+                hits.incrementAndGet()
+            }
+        } catch (e: IOException) {
+            remove(key)
+            null
+        }
+    }
+
+    fun put(key: String, bytes: ByteArray) {
+        val file = File(dir, key)
+        val tmpFile = File(dir, key + TMP_SUFFIX)
+        try {
+            tmpFile.writeBytes(bytes)
+            if (!tmpFile.renameTo(file)) throw IOException("Could not write ${file.path}")
+        } catch (e: IOException) {
+            tmpFile.delete()
+            return
+        }
+
+        synchronized(entries) {
+            entries.put(key, bytes.size.toLong())?.let { size -= it }
+            size += bytes.size
+            trimToSize()
+        }
+    }
+
+    /**
+     * Get a tile from the cache, or else fetch it and cache it if [fetch] gives a tile. If the
+     * same tile is already being fetched, wait for it instead.
+     */
+    fun getOrFetch(key: String, fetch: () -> ByteArray?): ByteArray? {
+        get(key)?.let { return it }
+
+        val task: FutureTask<ByteArray?>
+        val owner: Boolean
+        synchronized(inFlight) {
+            val existing = inFlight[key]
+            owner = existing == null
+            task = existing ?: FutureTask(Callable { fetch()?.also { put(key, it) } }).also {
+                inFlight[key] = it
+            }
+        }
+
+        if (owner) {
+            misses.incrementAndGet()
+            try {
+                task.run()
+            } finally {
+                synchronized(inFlight) { inFlight.remove(key) }
+            }
+        } else {
+            coalesced.incrementAndGet()
+        }
+
+        return try {
+            task.get()
+        } catch (e: ExecutionException) {
+            null
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            null
+        }
+    }
+
+    private fun remove(key: String) {
+        synchronized(entries) {
+            entries.remove(key)?.let { size -= it }
+        }
+        File(dir, key).delete()
+    }
+
+    private fun trimToSize() {
+        val iterator = entries.entries.iterator()
+        while (size > maxSize && iterator.hasNext()) {
+            val (key, tileSize) = iterator.next()
+            iterator.remove()
+            size -= tileSize
+            File(dir, key).delete()
+        }
+    }
+
+    companion object {
+        private const val TMP_SUFFIX = ".tmp"
+        private const val DIR_NAME = "tiles"
+        private const val MAX_SIZE = 64L * 1024 * 1024
+
+        private var shared: TileDiskCache? = null
+
+        /**
+         * The cache shared by all online providers, in the cache folder of the application.
+         */
+        @JvmStatic
+        @Synchronized
+        fun shared(context: Context): TileDiskCache {
+            return shared ?: TileDiskCache(File(context.cacheDir, DIR_NAME), MAX_SIZE).also {
+                shared = it
+            }
+        }
+
+        /**
+         * The key of a tile, which is also the name of its file.
+         *
+         * @param source The server of the tile, e.g "IGN"
+         * @param layer The layer of the tile, or an empty string
+         */
+        @JvmStatic
+        fun key(source: String, layer: String, level: Int, row: Int, col: Int): String {
+            return listOf(source, layer, level, row, col).joinToString("_") {
+                it.toString().replace(Regex("[^A-Za-z0-9.-]"), "-")
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.peterlaurence.trekme.core.providers.http
+
+import android.util.Log
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Paces the requests made to a host. It is shared by all tile fetchers through the
+ * [TileHttpEngine] (see [TileHttpEngine.setRateLimiter]), and applies to the requests made with
+ * `paced = true`. Hosts without limiter aren't limited.
+ */
+interface RateLimiter {
+    /**
+     * Blocks until the next request is allowed.
+     *
+     * @return false if no more requests are allowed, e.g when a daily budget is exhausted
+     */
+    fun acquire(): Boolean
+
+    /**
+     * Persist what must survive the application, e.g the count of a [DailyBudget].
+     */
+    fun save() {}
+
+    companion object {
+        /**
+         * No limit at all, at no cost.
+         */
+        val UNLIMITED = object : RateLimiter {
+            override fun acquire() = true
+        }
+    }
+}
+
+/**
+ * A token bucket which fills at [ratePerSecond], and holds at most [burst] tokens.
+ *
+ * It is implemented as a "virtual scheduling" : each request reserves the next slot with a CAS on
+ * the time of the last reserved slot, then waits until its slot. So requests are evenly spaced once
+ * the burst allowance is used, and no lock is taken.
+ *
+ * @param budget An optional limit of the number of requests per day
+ */
+class TokenBucketRateLimiter(ratePerSecond: Double, burst: Int = 1,
+                             private val budget: DailyBudget? = null) : RateLimiter {
+    private val intervalNs = (TimeUnit.SECONDS.toNanos(1) / ratePerSecond).toLong()
+    private val burstNs = intervalNs * (Math.max(1, burst) - 1)
+    private val nextSlotNs = AtomicLong(System.nanoTime() - burstNs)
+
+    override fun acquire(): Boolean {
+        if (budget != null && !budget.consume()) return false
+
+        while (true) {
+            val next = nextSlotNs.get()
+            val now = System.nanoTime()
+            /* After an idle period, up to [burst] requests can go right away */
+            val slot = Math.max(next, now - burstNs)
+            if (nextSlotNs.compareAndSet(next, slot + intervalNs)) {
+                if (slot > now) LockSupport.parkNanos(slot - now)
+                return true
+            }
+        }
+    }
+
+    override fun save() {
+        budget?.save()
+    }
+}
+
+/**
+ * A maximum number of requests per day, which persists across runs in [file]. The count is saved
+ * every [SAVE_INTERVAL] requests, and on [save].
+ */
+class DailyBudget(private val file: File, private val maxPerDay: Int) {
+    private var day = today()
+    private var count = load()
+
+    @Synchronized
+    fun consume(): Boolean {
+        val now = today()
+        if (now != day) {
+            day = now
+            count = 0
+        }
+        if (count >= maxPerDay) return false
+        if (++count % SAVE_INTERVAL == 0) save()
+        return true
+    }
+
+    val remaining: Int
+        @Synchronized get() = if (day == today()) Math.max(0, maxPerDay - count) else maxPerDay
+
+    @Synchronized
+    fun save() {
+        try {
+            file.writeText("$day $count")
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not save the request budget", e)
+        }
+    }
+
+    private fun load(): Int {
+        return try {
+            val (savedDay, savedCount) = file.readText().trim().split(" ")
+            if (savedDay == day) savedCount.toInt() else 0
+        } catch (e: Exception) {
+            0
+        }
+    }
+
+    private fun today(): String = SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH).format(Date())
+
+    companion object {
+        private const val SAVE_INTERVAL = 50
+        private const val TAG = "DailyBudget"
+    }
+}
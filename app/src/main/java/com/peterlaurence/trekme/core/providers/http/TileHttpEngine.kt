@@ -0,0 +1,206 @@
+package com.peterlaurence.trekme.core.providers.http
+
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+
+/**
+ * The HTTP engine used to fetch tiles. A single instance ([shared]) is meant to be used by all
+ * tile fetchers, so that they share the same connection pool.
+ *
+ * Connection setup (and the TLS handshake in particular) dominates the latency of a tile request,
+ * so this engine makes sure connections are reused :
+ *
+ * * Keep-alive is enabled and the platform pool keeps up to [Config.maxConnectionsPerHost] idle
+ *   connections per host
+ * * At most [Config.maxConnectionsPerHost] requests are in flight for a given host, so no
+ *   connection is opened that the pool couldn't keep afterwards
+ * * Response bodies (including error bodies) are always fully read and closed, which is the
+ *   condition for a connection to go back to the pool. Connections are never disconnected.
+ *
+ * When the server doesn't send the body length, or when it's unusually large, the body is read in
+ * a per-thread buffer which is reused from one request to the other. Bodies larger than
+ * [MAX_BODY_SIZE] are refused.
+ *
+ * Requests to a host can also be paced with a [RateLimiter] (see [setRateLimiter]). Only the
+ * requests which ask for it are paced, so that browsing a source stays responsive while a download
+ * of the same source is paced.
+ */
+class TileHttpEngine(val config: Config = Config()) {
+    data class Config(val connectTimeoutMs: Int = 10_000, val readTimeoutMs: Int = 15_000,
+                      val maxConnectionsPerHost: Int = 8)
+
+    private val hostPermits = ConcurrentHashMap<String, Semaphore>()
+    private val rateLimiters = ConcurrentHashMap<String, RateLimiter>()
+    private val readBuffer = object : ThreadLocal<Buffer>() {
+        override fun initialValue() = Buffer()
+    }
+
+    /*
+     * Best effort : these properties are read once by the platform, when HttpURLConnection is first
+     * used. If another part of the application made a request before, the defaults stay.
+     */
+    init {
+        System.setProperty("http.keepAlive", "true")
+        val maxConnections = System.getProperty("http.maxConnections")?.toIntOrNull() ?: 0
+        if (maxConnections < config.maxConnectionsPerHost) {
+            System.setProperty("http.maxConnections", config.maxConnectionsPerHost.toString())
+        }
+    }
+
+    /**
+     * Set the [RateLimiter] of a host, unless it already has one. So the limiter (and its budget)
+     * is kept from one download to the other.
+     */
+    fun setRateLimiter(host: String, factory: () -> RateLimiter) {
+        rateLimiters.getOrPut(host, factory)
+    }
+
+    /**
+     * Persist the state of all [RateLimiter]s, e.g at the end of a download.
+     */
+    fun saveRateLimiters() {
+        rateLimiters.values.forEach { it.save() }
+    }
+
+    /**
+     * Perform a GET request. This call blocks until the whole body is received, or until an error
+     * occurs.
+     *
+     * @param headers Additional request properties, e.g an authorization header
+     * @param paced Whether the request waits for the [RateLimiter] of the host, if it has one
+     */
+    fun fetch(url: String, headers: Map<String, String> = emptyMap(), paced: Boolean = false): TileResponse {
+        val target = try {
+            URL(url)
+        } catch (e: IOException) {
+            return TileResponse(TileResponse.NO_RESPONSE, null, e)
+        }
+        val waitStartNs = System.nanoTime()
+        val rateLimiter = (if (paced) rateLimiters[target.host] else null) ?: RateLimiter.UNLIMITED
+        if (!rateLimiter.acquire()) {
+            return TileResponse(TileResponse.BUDGET_EXHAUSTED, null, null, waitNs = System.nanoTime() - waitStartNs)
+        }
+        val permits = hostPermits.getOrPut(target.host) { Semaphore(config.maxConnectionsPerHost) }
+
+        permits.acquireUninterruptibly()
+        val waitNs = System.nanoTime() - waitStartNs
+        try {
+            val connection = target.openConnection() as HttpURLConnection
+            connection.connectTimeout = config.connectTimeoutMs
+            connection.readTimeout = config.readTimeoutMs
+            connection.doInput = true
+            for ((key, value) in headers) {
+                connection.setRequestProperty(key, value)
+            }
+
+            val startNs = System.nanoTime()
+            connection.connect()
+            val connectedNs = System.nanoTime()
+            val code = connection.responseCode
+            val firstByteNs = System.nanoTime()
+            if (code != HttpURLConnection.HTTP_OK) {
+                /* Drain the error body so the connection can be reused */
+                connection.errorStream?.use { discard(it) }
+                return TileResponse(code, null, null, connectedNs - startNs, firstByteNs - connectedNs, waitNs = waitNs)
+            }
+
+            val data = connection.inputStream.use { readBody(it, connection.contentLength) }
+            return TileResponse(code, data, null, connectedNs - startNs, firstByteNs - connectedNs,
+                    System.nanoTime() - firstByteNs, waitNs)
+        } catch (e: IOException) {
+            return TileResponse(TileResponse.NO_RESPONSE, null, e, waitNs = waitNs)
+        } finally {
+            permits.release()
+        }
+    }
+
+    private fun readBody(inputStream: InputStream, contentLength: Int): ByteArray {
+        if (contentLength > MAX_BODY_SIZE) throw IOException("Response too large: $contentLength bytes")
+
+        /* The size is known, read directly into the result. The size is sent by the server, so a
+         * large one isn't trusted with an allocation of its own */
+        if (contentLength in 1..MAX_PREALLOCATED_SIZE) {
+            val data = ByteArray(contentLength)
+            var offset = 0
+            while (offset < contentLength) {
+                val count = inputStream.read(data, offset, contentLength - offset)
+                if (count < 0) throw IOException("Truncated response: $offset out of $contentLength bytes")
+                offset += count
+            }
+            return data
+        }
+
+        /* Otherwise, use the buffer of the current thread */
+        val buffer = readBuffer.get()
+        var length = 0
+        while (true) {
+            if (length == buffer.array.size) {
+                if (length >= MAX_BODY_SIZE) throw IOException("Response too large")
+                buffer.grow()
+            }
+            val count = inputStream.read(buffer.array, length, buffer.array.size - length)
+            if (count < 0) break
+            length += count
+        }
+        if (contentLength > 0 && length != contentLength) {
+            throw IOException("Truncated response: $length out of $contentLength bytes")
+        }
+        return buffer.array.copyOf(length)
+    }
+
+    private fun discard(inputStream: InputStream) {
+        val array = readBuffer.get().array
+        while (inputStream.read(array) >= 0) {
+            // discard
+        }
+    }
+
+    private class Buffer {
+        var array = ByteArray(32 * 1024)
+
+        fun grow() {
+            array = array.copyOf(array.size * 2)
+        }
+    }
+
+    companion object {
+        /* Tiles weigh tens of KB */
+        private const val MAX_PREALLOCATED_SIZE = 1024 * 1024
+        const val MAX_BODY_SIZE = 16 * 1024 * 1024
+
+        /**
+         * The engine shared by all tile fetchers.
+         */
+        val shared: TileHttpEngine by lazy { TileHttpEngine() }
+    }
+}
+
+/**
+ * The outcome of a tile request.
+ *
+ * @param code The HTTP status code, or [NO_RESPONSE] if the server couldn't be reached, or
+ * [BUDGET_EXHAUSTED] if the request wasn't made
+ * @param data The body, only set on success
+ * @param error The exception which occurred, if any
+ * @param connectNs The time taken to connect, or to get a connection from the pool
+ * @param firstByteNs The time from the request to the status line
+ * @param bodyNs The time taken to read the body. Like the other durations, it is 0 if the step
+ * wasn't reached.
+ * @param waitNs The time spent waiting for the [RateLimiter] and for a free connection, before
+ * the request. It doesn't tell anything about the server.
+ */
+class TileResponse(val code: Int, val data: ByteArray?, val error: IOException?,
+                   val connectNs: Long = 0, val firstByteNs: Long = 0, val bodyNs: Long = 0,
+                   val waitNs: Long = 0) {
+    val isSuccessful: Boolean
+        get() = data != null
+
+    companion object {
+        const val NO_RESPONSE = -1
+        const val BUDGET_EXHAUSTED = -2
+    }
+}
@@ -3,6 +3,8 @@ package com.peterlaurence.trekme.model.providers.bitmap
 import android.content.Context
 import android.graphics.Bitmap
 import com.peterlaurence.trekme.core.mapsource.IGNCredentials
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.providers.bitmap.CachedBitmapProvider
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
 import com.peterlaurence.trekme.core.providers.layers.IgnLayers
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgn
@@ -21,17 +23,19 @@ import com.qozix.tileview.tiles.Tile
  */
 class BitmapProviderIgn(credentials: IGNCredentials, layer: String = IgnLayers.ScanExpressStandard.realName) : BitmapProvider {
     private val genericProvider: GenericBitmapProvider
+    private val cachedProvider: CachedBitmapProvider
 
     init {
         val urlTileBuilder = UrlTileBuilderIgn(credentials.api ?: "", layer)
         genericProvider = GenericBitmapProvider.getBitmapProviderIgn(urlTileBuilder, credentials.user
                 ?: "", credentials.pwd ?: "")
+        cachedProvider = CachedBitmapProvider(genericProvider, MapSource.IGN.name, layer)
     }
 
 
-    override fun getBitmap(tile: Tile, p1: Context?): Bitmap? {
+    override fun getBitmap(tile: Tile, context: Context?): Bitmap? {
         val zoomLvl = tile.data as Int
 
-        return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        return cachedProvider.getBitmap(context, zoomLvl, tile.row, tile.column)
     }
 }
\ No newline at end of file
@@ -2,6 +2,8 @@ package com.peterlaurence.trekme.model.providers.bitmap
 
 import android.content.Context
 import android.graphics.Bitmap
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.providers.bitmap.CachedBitmapProvider
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgnSpain
 import com.qozix.tileview.graphics.BitmapProvider
@@ -10,10 +12,11 @@ import com.qozix.tileview.tiles.Tile
 class BitmapProviderIgnSpain : BitmapProvider {
     private val urlTileBuilder = UrlTileBuilderIgnSpain()
     private val genericProvider = GenericBitmapProvider.getBitmapProviderIgnSpain(urlTileBuilder)
+    private val cachedProvider = CachedBitmapProvider(genericProvider, MapSource.IGN_SPAIN.name)
 
-    override fun getBitmap(tile: Tile, p1: Context?): Bitmap? {
+    override fun getBitmap(tile: Tile, context: Context?): Bitmap? {
         val zoomLvl = tile.data as Int
 
-        return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        return cachedProvider.getBitmap(context, zoomLvl, tile.row, tile.column)
     }
 }
\ No newline at end of file
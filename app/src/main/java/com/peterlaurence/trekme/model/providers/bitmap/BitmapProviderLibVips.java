@@ -3,50 +3,129 @@ package com.peterlaurence.trekme.model.providers.bitmap;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.util.SparseArray;
 
 import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.TileDedupIndex;
+import com.peterlaurence.trekme.core.map.gson.MapGson;
+import com.peterlaurence.trekme.core.providers.bitmap.CachedTileProvider;
+import com.peterlaurence.trekme.core.providers.bitmap.TileBitmapCache;
+import com.peterlaurence.trekme.core.providers.bitmap.TileBitmapPool;
+import com.peterlaurence.trekme.core.providers.bitmap.TileBytesCache;
 import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.graphics.BitmapRecycler;
 import com.qozix.tileview.tiles.Tile;
 
 import java.io.File;
 
+import static com.peterlaurence.trekme.core.map.TileDedupKt.keyLevel;
+import static com.peterlaurence.trekme.core.map.TileDedupKt.tileKey;
+
 /**
  * An implementation of {@link BitmapProvider}, able to read maps generated by LibVips.
+ * <p>
+ * Decoded tiles are kept in the {@link TileBitmapCache}, so panning back over an area or switching
+ * between two levels doesn't decode the same tiles again. Tiles listed in the
+ * {@link TileDedupIndex} of the map are read from their canonical tile, and cached once under the
+ * key of the canonical tile. As a cached bitmap may still be displayed, this provider is also the
+ * {@link BitmapRecycler} of the TileView, and lets the cache decide when to recycle.
+ * <p>
+ * Tiles are decoded into bitmaps of the {@link TileBitmapPool} when there are some, so that panning
+ * a map allocates almost no bitmap once the pool is filled. The content of tile files is read
+ * through the {@link TileBytesCache}, so a tile evicted from the {@link TileBitmapCache} is often
+ * decoded again without reading its file.
  */
-public class BitmapProviderLibVips implements BitmapProvider {
+public class BitmapProviderLibVips implements BitmapProvider, BitmapRecycler, CachedTileProvider {
     private final File mDirectory;
+    private final int mMapId;
+    private final TileDedupIndex mDedupIndex;
 
     public static final String GENERATOR_NAME = "VIPS";
 
     private final String mImageExtension;
+    private final SparseArray<MapGson.Level.TileSize> mTileSizes = new SparseArray<>();
 
-    private static final BitmapFactory.Options bitmapLoadingOptions = new BitmapFactory.Options();
-
-    static {
-        bitmapLoadingOptions.inPreferredConfig = Bitmap.Config.RGB_565;
-    }
+    /* Each decoding thread sets its own inBitmap */
+    private static final ThreadLocal<BitmapFactory.Options> bitmapLoadingOptions = new ThreadLocal<BitmapFactory.Options>() {
+        @Override
+        protected BitmapFactory.Options initialValue() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inMutable = true;
+            return options;
+        }
+    };
 
     public BitmapProviderLibVips(Map map){
         mDirectory = map.getDirectory();
+        mMapId = map.getId();
         mImageExtension = map.getImageExtension();
+        mDedupIndex = TileDedupIndex.load(mDirectory);
+        for (MapGson.Level level : map.getLevelList()) {
+            mTileSizes.put(level.level, level.tile_size);
+        }
+
+        /* A new provider is made when the tiles of the map may have changed */
+        TileBitmapCache.evictMap(mMapId);
+        TileBytesCache.evictPrefix(mDirectory.getPath() + File.separator);
     }
 
     @Override
     public Bitmap getBitmap(Tile tile, Context context) {
         Object zoomLvl = tile.getData();
         if(zoomLvl instanceof Integer){
+            long key = getCacheKey((Integer) zoomLvl, tile.getRow(), tile.getColumn());
+            Bitmap bitmap = TileBitmapCache.get(context, mMapId, key);
+            if (bitmap != null) {
+                return bitmap;
+            }
 
-            String relativePathString = zoomLvl.toString() + File.separator + tile.getRow() +
-                    File.separator + tile.getColumn() + mImageExtension;
+            String relativePathString = TileDedupIndex.canonicalPath(key) + mImageExtension;
             try {
                 File tileFile = new File(mDirectory, relativePathString);
 
-                return BitmapFactory.decodeFile(tileFile.getPath(), bitmapLoadingOptions);
+                byte[] data = TileBytesCache.getOrRead(tileFile);
+                if (data == null) return null;
+
+                MapGson.Level.TileSize tileSize = mTileSizes.get(keyLevel(key));
+                if (tileSize != null) {
+                    bitmap = TileBitmapPool.decodeByteArray(data, tileSize.x, tileSize.y,
+                            bitmapLoadingOptions.get());
+                } else {
+                    bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, bitmapLoadingOptions.get());
+                }
             } catch (OutOfMemoryError | Exception e){
                 // this is probably an out of memory error - we can try sleeping (this method won't
                 // be called in the UI thread) or try again (or give up)
             }
+            if (bitmap != null) {
+                TileBitmapCache.put(context, mMapId, key, bitmap);
+            }
+            return bitmap;
         }
         return null;
     }
+
+    @Override
+    public Bitmap getCachedBitmap(int level, int row, int col) {
+        return TileBitmapCache.getIfCached(mMapId, getCacheKey(level, row, col));
+    }
+
+    /**
+     * Shared tiles are cached once, under the key of their canonical tile.
+     */
+    private long getCacheKey(int level, int row, int col) {
+        if (mDedupIndex != null) {
+            long canonical = mDedupIndex.canonicalOf(level, row, col);
+            if (canonical != -1) {
+                return canonical;
+            }
+        }
+        return tileKey(level, row, col);
+    }
+
+    @Override
+    public void recycleBitmap(Bitmap bitmap) {
+        TileBitmapCache.release(bitmap);
+    }
 }
@@ -0,0 +1,137 @@
+package com.peterlaurence.trekme.model.providers.bitmap;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.mbtiles.MbTile;
+import com.peterlaurence.trekme.core.map.mbtiles.MbTiles;
+import com.peterlaurence.trekme.core.map.mbtiles.MbTilesLayout;
+import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.tiles.Tile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An implementation of {@link BitmapProvider}, which reads the tiles straight from the MBTiles file
+ * of a map.
+ * <p>
+ * A SQLite connection can only run one query at a time, and the TileView decodes tiles from several
+ * threads. So a few read-only connections are kept in a pool. Each connection caches the compiled
+ * tile query. The connections are closed along with the provider, when the map gets another one
+ * (see {@link Map#setBitmapProvider(BitmapProvider)}).
+ */
+public class BitmapProviderMbTiles implements BitmapProvider, Closeable {
+    public static final String GENERATOR_NAME = "MBTILES";
+    private static final int POOL_SIZE = 3;
+    private static final long CLOSE_CHECK_INTERVAL_MS = 200;
+    private static final String TAG = "BitmapProviderMbTiles";
+
+    private final File mFile;
+    private final BlockingQueue<SQLiteDatabase> mConnections = new ArrayBlockingQueue<>(POOL_SIZE);
+    private int mConnectionCount = 0;
+    private volatile boolean mClosed = false;
+    private MbTilesLayout mLayout;
+
+    private static final BitmapFactory.Options bitmapLoadingOptions = new BitmapFactory.Options();
+
+    static {
+        bitmapLoadingOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+    }
+
+    public BitmapProviderMbTiles(Map map) {
+        mFile = MbTiles.findFile(map.getDirectory());
+    }
+
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context) {
+        Object zoomLvl = tile.getData();
+        if (mFile == null || !(zoomLvl instanceof Integer)) return null;
+
+        SQLiteDatabase db = null;
+        try {
+            db = acquire();
+            if (db == null) return null;
+            MbTilesLayout layout = getLayout(db);
+            if (layout == null) return null;
+
+            MbTile mbTile = layout.toMbTile((Integer) zoomLvl, tile.getRow(), tile.getColumn());
+            String[] args = new String[]{String.valueOf(mbTile.getZoom()),
+                    String.valueOf(mbTile.getCol()), String.valueOf(mbTile.getTmsRow())};
+            try (Cursor cursor = db.rawQuery(MbTiles.TILE_QUERY, args)) {
+                if (!cursor.moveToFirst()) return null;
+                byte[] data = cursor.getBlob(0);
+                return BitmapFactory.decodeByteArray(data, 0, data.length, bitmapLoadingOptions);
+            }
+        } catch (OutOfMemoryError | Exception e) {
+            Log.e(TAG, "Could not read a tile", e);
+        } finally {
+            if (db != null) {
+                release(db);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close the connections of the pool. Those in use are closed as soon as they are released.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        SQLiteDatabase db;
+        while ((db = mConnections.poll()) != null) {
+            db.close();
+        }
+    }
+
+    /**
+     * Take a connection from the pool. New connections are opened until there are
+     * {@link #POOL_SIZE} of them, then threads wait for one to be released.
+     *
+     * @return the connection, or null if the provider is closed
+     */
+    private SQLiteDatabase acquire() throws InterruptedException {
+        SQLiteDatabase db = mConnections.poll();
+        if (db != null) return db;
+
+        synchronized (this) {
+            if (mClosed) return null;
+            if (mConnectionCount < POOL_SIZE) {
+                db = MbTiles.openReadOnly(mFile);
+                mConnectionCount++;
+                return db;
+            }
+        }
+
+        /* Don't wait forever for a connection of a closed provider */
+        while (!mClosed) {
+            db = mConnections.poll(CLOSE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (db != null) return db;
+        }
+        return null;
+    }
+
+    private void release(SQLiteDatabase db) {
+        mConnections.offer(db);
+        /* The pool may have been closed while the connection was in use */
+        if (mClosed && mConnections.remove(db)) {
+            db.close();
+        }
+    }
+
+    private synchronized MbTilesLayout getLayout(SQLiteDatabase db) {
+        if (mLayout == null) {
+            mLayout = MbTiles.readLayout(db);
+        }
+        return mLayout;
+    }
+}
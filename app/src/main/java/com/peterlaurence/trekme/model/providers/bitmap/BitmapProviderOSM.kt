@@ -2,6 +2,8 @@ package com.peterlaurence.trekme.model.providers.bitmap
 
 import android.content.Context
 import android.graphics.Bitmap
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.providers.bitmap.CachedBitmapProvider
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderOSM
 import com.qozix.tileview.graphics.BitmapProvider
@@ -10,10 +12,11 @@ import com.qozix.tileview.tiles.Tile
 class BitmapProviderOSM : BitmapProvider {
     private val urlTileBuilder = UrlTileBuilderOSM()
     private val genericProvider = GenericBitmapProvider.getBitmapProviderOSM(urlTileBuilder)
+    private val cachedProvider = CachedBitmapProvider(genericProvider, MapSource.OPEN_STREET_MAP.name)
 
-    override fun getBitmap(tile: Tile, p1: Context?): Bitmap? {
+    override fun getBitmap(tile: Tile, context: Context?): Bitmap? {
         val zoomLvl = tile.data as Int
 
-        return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        return cachedProvider.getBitmap(context, zoomLvl, tile.row, tile.column)
     }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package com.peterlaurence.trekme.model.providers.bitmap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.TilePack;
+import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.tiles.Tile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An implementation of {@link BitmapProvider}, able to read maps stored in a {@link TilePack}.
+ * The bytes of each tile are read from the memory-mapped pack, so no file is opened.
+ */
+public class BitmapProviderPack implements BitmapProvider {
+    public static final String GENERATOR_NAME = "PACK";
+
+    private final TilePack mTilePack;
+
+    private static final BitmapFactory.Options bitmapLoadingOptions = new BitmapFactory.Options();
+
+    static {
+        bitmapLoadingOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+    }
+
+    /* BitmapFactory needs an array, so each thread reuses its own */
+    private final ThreadLocal<byte[]> mBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32 * 1024];
+        }
+    };
+
+    public BitmapProviderPack(Map map) {
+        mTilePack = TilePack.open(map.getDirectory());
+    }
+
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context) {
+        Object zoomLvl = tile.getData();
+        if (mTilePack != null && zoomLvl instanceof Integer) {
+            ByteBuffer data = mTilePack.getTile((Integer) zoomLvl, tile.getRow(), tile.getColumn());
+            if (data == null) return null;
+
+            int length = data.remaining();
+            byte[] buffer = mBuffer.get();
+            if (buffer.length < length) {
+                buffer = new byte[length];
+                mBuffer.set(buffer);
+            }
+            data.get(buffer, 0, length);
+            try {
+                return BitmapFactory.decodeByteArray(buffer, 0, length, bitmapLoadingOptions);
+            } catch (OutOfMemoryError | Exception e) {
+                // same as for other providers, give up this tile
+            }
+        }
+        return null;
+    }
+}
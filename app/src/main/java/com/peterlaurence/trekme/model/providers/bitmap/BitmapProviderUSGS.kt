@@ -2,6 +2,8 @@ package com.peterlaurence.trekme.model.providers.bitmap
 
 import android.content.Context
 import android.graphics.Bitmap
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.providers.bitmap.CachedBitmapProvider
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderUSGS
 import com.qozix.tileview.graphics.BitmapProvider
@@ -10,10 +12,11 @@ import com.qozix.tileview.tiles.Tile
 class BitmapProviderUSGS : BitmapProvider {
     private val urlTileBuilder = UrlTileBuilderUSGS()
     private val genericProvider = GenericBitmapProvider.getBitmapProviderUSGS(urlTileBuilder)
+    private val cachedProvider = CachedBitmapProvider(genericProvider, MapSource.USGS.name)
 
-    override fun getBitmap(tile: Tile, p1: Context?): Bitmap? {
+    override fun getBitmap(tile: Tile, context: Context?): Bitmap? {
         val zoomLvl = tile.data as Int
 
-        return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        return cachedProvider.getBitmap(context, zoomLvl, tile.row, tile.column)
     }
 }
\ No newline at end of file
@@ -12,24 +12,51 @@ import android.graphics.Color
 import android.os.Handler
 import android.os.IBinder
 import android.os.Looper
+import android.text.format.Formatter
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
+import com.peterlaurence.trekme.BuildConfig
 import com.peterlaurence.trekme.MainActivity
 import com.peterlaurence.trekme.R
 import com.peterlaurence.trekme.core.TrekMeContext
+import com.peterlaurence.trekme.core.download.ConcurrencyController
+import com.peterlaurence.trekme.core.download.DownloadJournal
+import com.peterlaurence.trekme.core.download.DownloadProgress
+import com.peterlaurence.trekme.core.download.DownloadTelemetry
+import com.peterlaurence.trekme.core.download.FailedTile
+import com.peterlaurence.trekme.core.download.ProgressAggregator
+import com.peterlaurence.trekme.core.download.RateLimits
+import com.peterlaurence.trekme.core.download.TileErrorClass
+import com.peterlaurence.trekme.core.download.TileIntegrityScanner
+import com.peterlaurence.trekme.core.download.TileRetryQueue
+import com.peterlaurence.trekme.core.download.TilePhase
+import com.peterlaurence.trekme.core.download.TileSink
+import com.peterlaurence.trekme.core.download.TileSpace
+import com.peterlaurence.trekme.core.download.toTileRuns
 import com.peterlaurence.trekme.core.map.Map
+import com.peterlaurence.trekme.core.map.TileDedupStore
+import com.peterlaurence.trekme.core.map.TilePack
+import com.peterlaurence.trekme.core.map.TilePackWriter
+import com.peterlaurence.trekme.core.map.gson.MapGson
 import com.peterlaurence.trekme.core.map.mapimporter.MapImporter
 import com.peterlaurence.trekme.core.map.maploader.MapLoader
 import com.peterlaurence.trekme.core.mapsource.MapSource
 import com.peterlaurence.trekme.core.mapsource.MapSourceCredentials
+import com.peterlaurence.trekme.core.mapsource.wmts.DownloadSpec
 import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRun
+import com.peterlaurence.trekme.core.mapsource.wmts.getMapSizeInTiles
+import com.peterlaurence.trekme.core.mapsource.wmts.getTileRuns
+import com.peterlaurence.trekme.core.mapsource.wmts.getTileSequenceAndCalibration
 import com.peterlaurence.trekme.core.projection.MercatorProjection
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
+import com.peterlaurence.trekme.core.providers.bitmap.imageFormat
+import com.peterlaurence.trekme.core.providers.http.TileHttpEngine
+import com.peterlaurence.trekme.core.providers.http.TileResponse
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgn
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgnSpain
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderOSM
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderUSGS
-import com.peterlaurence.trekme.model.providers.layers.LayerForSource
 import com.peterlaurence.trekme.service.event.DownloadServiceStatusEvent
 import com.peterlaurence.trekme.service.event.MapDownloadEvent
 import com.peterlaurence.trekme.service.event.RequestDownloadMapEvent
@@ -38,10 +65,11 @@ import com.peterlaurence.trekme.ui.mapcreate.views.WmtsLevelsDialog
 import org.greenrobot.eventbus.EventBus
 import org.greenrobot.eventbus.Subscribe
 import java.io.File
-import java.io.FileOutputStream
+import java.io.IOException
 import java.lang.RuntimeException
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 
 
 /**
@@ -56,7 +84,6 @@ import java.util.*
 class DownloadService : Service() {
     private val notificationChannelId = "peterlaurence.DownloadService"
     private val downloadServiceNofificationId = 128565
-    private val threadCount = 8
     private val stopAction = "stop"
 
     private lateinit var onTapPendingIntent: PendingIntent
@@ -68,10 +95,24 @@ class DownloadService : Service() {
 
     private val handler = Handler(Looper.getMainLooper())
     private lateinit var destDir: File
+    private var journal: DownloadJournal? = null
 
     private val progressEvent = MapDownloadEvent(Status.PENDING, 0.0)
 
     companion object {
+        /**
+         * The action of the [Intent] which resumes the most recent interrupted download, instead
+         * of requesting a new download spec.
+         */
+        const val RESUME_ACTION = "resume"
+
+        /**
+         * The action of the [Intent] which checks the tiles of the map folder given with
+         * [EXTRA_MAP_DIR], and downloads again the damaged or missing ones.
+         */
+        const val REPAIR_ACTION = "repair"
+        const val EXTRA_MAP_DIR = "mapDir"
+
         @JvmStatic
         @Volatile
         var started = false
@@ -98,6 +139,9 @@ class DownloadService : Service() {
 
     override fun onDestroy() {
         EventBus.getDefault().unregister(this)
+        /* Otherwise, the next download or repair would be seen as already running */
+        started = false
+        TileHttpEngine.shared.saveRateLimiters()
         super.onDestroy()
     }
 
@@ -113,6 +157,7 @@ class DownloadService : Service() {
         /* If the user used the notification action-stop button, stop the service */
         if (intent.action == stopAction) {
             started = false
+            journal?.checkpoint()
             stopForeground(true)
             stopSelf()
             return START_NOT_STICKY
@@ -146,32 +191,21 @@ class DownloadService : Service() {
         started = true
         sendStartedStatus()
 
-        /* Get ready for download and request download spec */
+        /* Get ready for download and request download spec, unless we resume a download */
         progressEvent.progress = 0.0
-        requestDownloadSpec()
+        if (intent.action == RESUME_ACTION) {
+            resumeDownload()
+        } else if (intent.action == REPAIR_ACTION) {
+            repairMap(File(intent.getStringExtra(EXTRA_MAP_DIR)))
+        } else {
+            requestDownloadSpec()
+        }
 
         return Service.START_NOT_STICKY
     }
 
     @Subscribe
     fun onRequestDownloadMapEvent(event: RequestDownloadMapEvent) {
-        val source = event.source
-        val tileSequence = event.tileSequence
-
-        val threadSafeTileIterator = ThreadSafeTileIterator(tileSequence.iterator(), event.numberOfTiles) { p ->
-            if (started) {
-                handler.post { (this::onDownloadProgress)(p) }
-
-                /* Post-process if download reaches 100% */
-                if (p == 100.0) {
-                    postProcess(event)
-                }
-            }
-        }
-
-        /* Init the progress bar */
-        onDownloadProgress(0.0)
-
         /* Create the destination folder, or else fail-fast */
         val destDirRes = createDestDir()
         if (destDirRes != null) {
@@ -184,26 +218,168 @@ class DownloadService : Service() {
             return
         }
 
-        /* A writer which has a folder for each level, and a folder for each row. It does that with
-         * using indexes instead of real level, row and col numbers. This greatly simplifies how a
-         * tile is later retrieved from a bitmap provider. */
-        val tileWriter = object : TileWriter(destDir) {
-            override fun write(tile: Tile, bitmap: Bitmap) {
-                val tileDir = File(destDir, tile.indexLevel.toString() + File.separator + tile.indexRow.toString())
-                tileDir.mkdirs()
-                val tileFile = File(tileDir, tile.indexCol.toString() + ".jpg")
-                try {
-                    val out = FileOutputStream(tileFile)
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out)
-                    out.flush()
-                    out.close()
-                } catch (e: Exception) {
-                    e.printStackTrace()
+        val spec = event.spec
+        val calibrationPoints = getTileSequenceAndCalibration(spec.levelMin, spec.levelMax,
+                spec.point1, spec.point2).calibrationPoints
+        startDownload(DownloadJournal.create(destDir, spec, calibrationPoints))
+    }
+
+    /**
+     * Resume the most recent download which didn't complete. Tiles that were already downloaded
+     * are skipped.
+     */
+    private fun resumeDownload() {
+        val journal = DownloadJournal.findInterrupted().asSequence().mapNotNull {
+            DownloadJournal.load(it)
+        }.firstOrNull()
+
+        if (journal == null) {
+            started = false
+            stopForeground(true)
+            stopSelf()
+            return
+        }
+
+        destDir = journal.dir
+        startDownload(journal)
+    }
+
+    private fun startDownload(journal: DownloadJournal) {
+        this.journal = journal
+        val spec = journal.spec
+        val tileRuns = getTileRuns(spec)
+
+        val tileSpace = TileSpace(tileRuns, journal::isCompleted)
+        val progressAggregator = ProgressAggregator(tileSpace.size, journal.completedCount) { p ->
+            if (started) {
+                handler.post { (this::onDownloadProgress)(p) }
+            }
+        }
+
+        /* Init the progress bar */
+        onDownloadProgress(progressAggregator.progress)
+
+        /* Tiles go either in a TilePack, or in folders. In the latter case, duplicates of small
+         * tiles aren't written, they are recorded in the TileDedupStore */
+        val tilePackWriter = if (spec.packed) TilePackWriter(destDir) else null
+        val dedupStore = if (spec.packed) null else TileDedupStore(destDir)
+        val tileWriter = if (tilePackWriter != null) {
+            makePackTileWriter(tilePackWriter) { journal.markCompleted(it) }
+        } else {
+            makeTileWriter(destDir, tileRuns, dedupStore) { journal.markCompleted(it) }
+        }
+
+        /* Once all tiles are either downloaded or permanently missing, check what was written and
+         * download again the damaged tiles, then post-process */
+        launchDownloadTask(spec, tileSpace, tileWriter, progressAggregator) { failedTiles ->
+            dedupStore?.close()
+            tilePackWriter?.close()
+            if (started) {
+                progressAggregator.finish()
+                /* In debug builds, keep the telemetry along with the map */
+                if (BuildConfig.DEBUG) {
+                    DownloadTelemetry.of(spec.source)?.dump(destDir)
+                }
+                /* The download goes on another day, when the budget allows it */
+                if (failedTiles.any { it.error == TileErrorClass.BUDGET }) {
+                    pauseOnBudget(journal)
+                    return@launchDownloadTask
+                }
+                repair(spec, failedTiles) { _, stillFailed ->
+                    if (started) postProcess(journal, stillFailed)
                 }
             }
         }
+    }
+
+    /**
+     * Check the tiles of a map folder. If it was downloaded by this service, the damaged and
+     * missing tiles are downloaded again. Otherwise, they can only be reported.
+     */
+    private fun repairMap(mapDir: File) {
+        destDir = mapDir
+        notificationBuilder.setContentText(getText(R.string.service_repair_action))
+        notificationManager.notify(downloadServiceNofificationId, notificationBuilder.build())
+        val journal = DownloadJournal.load(mapDir)
+        if (journal == null) {
+            Thread {
+                val damaged = TileIntegrityScanner(mapDir).scan()
+                handler.post { notifyRepairFinished(0, damaged.size) }
+            }.start()
+            return
+        }
+
+        /* Tiles converted by the MapTranscoder keep their extension */
+        val imageExtension = MapLoader.maps.firstOrNull { it.directory == mapDir }?.imageExtension
+        Thread {
+            repair(journal.spec, listOf(), imageExtension) { repaired, failedTiles ->
+                handler.post { notifyRepairFinished(repaired, failedTiles.size) }
+            }
+        }.start()
+    }
+
+    /**
+     * Scan the map being written in [destDir] and download again the damaged or missing tiles, in
+     * a single pass. Tiles which were already given up (the [failedTiles]) aren't tried again.
+     * Tiles of a [TilePack] aren't checked.
+     * Must be called from a background thread.
+     *
+     * @param imageExtension The extension of the tiles of the map, if it's already imported
+     * @param onFinished Called with the number of repaired tiles, and the tiles which are still
+     * missing
+     */
+    private fun repair(spec: DownloadSpec, failedTiles: List<FailedTile>, imageExtension: String? = null,
+                       onFinished: (Int, List<FailedTile>) -> Unit) {
+        if (spec.packed) {
+            onFinished(0, failedTiles)
+            return
+        }
+        val tileRuns = getTileRuns(spec)
+        val given = failedTiles.mapTo(HashSet()) { Triple(it.tile.indexLevel, it.tile.indexRow, it.tile.indexCol) }
+        val damaged = TileIntegrityScanner(destDir).scan(tileRuns).filterNot {
+            Triple(it.level, it.row, it.col) in given
+        }
+        if (damaged.isEmpty() || !started) {
+            onFinished(0, failedTiles)
+            return
+        }
+
+        handler.post {
+            notificationBuilder.setContentText(getText(R.string.service_repair_action))
+        }
+        val damagedRuns = damaged.toTileRuns(tileRuns)
+        val tileSpace = TileSpace(damagedRuns)
+        val progressAggregator = ProgressAggregator(tileSpace.size) { p ->
+            if (started) {
+                handler.post { (this::onDownloadProgress)(p) }
+            }
+        }
 
-        launchDownloadTask(threadCount, source, threadSafeTileIterator, tileWriter)
+        /* Damaged tiles are overwritten, without going through the TileDedupStore. They are few,
+         * and were damaged once already, so they are fully checked this time */
+        launchDownloadTask(spec.copy(validate = true), tileSpace, makeTileWriter(destDir, damagedRuns, null, imageExtension) {}, progressAggregator) { stillFailed ->
+            progressAggregator.finish()
+            onFinished(damaged.size - stillFailed.size, failedTiles + stillFailed)
+        }
+    }
+
+    /**
+     * A writer which appends the tiles to a [TilePack], as they were received.
+     */
+    private fun makePackTileWriter(tilePackWriter: TilePackWriter, onWritten: (Tile) -> Unit): TileWriter {
+        return object : TileWriter(destDir) {
+            override fun write(tile: Tile, data: ByteArray): Boolean {
+                if (data.imageFormat() == null) return false
+                return try {
+                    tilePackWriter.write(tile.indexLevel, tile.indexRow, tile.indexCol, data)
+                    onWritten(tile)
+                    true
+                } catch (e: IOException) {
+                    e.printStackTrace()
+                    false
+                }
+            }
+        }
     }
 
     private fun createDestDir(): File? {
@@ -220,9 +396,13 @@ class DownloadService : Service() {
         }
     }
 
-    private fun onDownloadProgress(progress: Double) {
+    private fun onDownloadProgress(downloadProgress: DownloadProgress) {
+        val progress = downloadProgress.progress
+
         /* Update the notification */
         notificationBuilder.setProgress(100, progress.toInt(), false)
+        notificationBuilder.setSubText(Formatter.formatShortFileSize(this,
+                downloadProgress.bytesPerSecond.toLong()) + "/s")
         notificationBuilder.setWhen(0)
         notificationBuilder.setOngoing(false)
         try {
@@ -234,21 +414,58 @@ class DownloadService : Service() {
 
         /* Send a message carrying the progress info */
         progressEvent.progress = progress
+        progressEvent.tilesPerSecond = downloadProgress.tilesPerSecond
+        progressEvent.bytesPerSecond = downloadProgress.bytesPerSecond
         EventBus.getDefault().post(progressEvent)
     }
 
-    private fun postProcess(event: RequestDownloadMapEvent) {
+    /**
+     * The journal isn't finished, so the download can be resumed. Nothing is imported, as the map
+     * is incomplete.
+     */
+    private fun pauseOnBudget(journal: DownloadJournal) {
+        journal.checkpoint()
+        TileHttpEngine.shared.saveRateLimiters()
+        handler.post {
+            notificationBuilder.setContentText(getText(R.string.service_download_budget_exhausted))
+            notificationBuilder.setProgress(0, 0, false)
+            notificationBuilder.setSubText(null)
+            notificationBuilder.mActions.clear()
+            notificationManager.notify(downloadServiceNofificationId, notificationBuilder.build())
+            EventBus.getDefault().post(MapDownloadEvent(Status.PAUSED))
+            started = false
+            stopSelf()
+        }
+    }
+
+    private fun postProcess(journal: DownloadJournal, failedTiles: List<FailedTile>) {
+        journal.finish()
+        TileHttpEngine.shared.saveRateLimiters()
+
         /* Calibrate */
         fun calibrate(map: Map) {
+            /* Some tiles may be missing (e.g for a corridor), so the size can't be deduced from the
+             * files */
+            val spec = journal.spec
+            val tileSize = map.mapGson.levels.lastOrNull()?.tile_size
+            if (tileSize != null) {
+                val (colCount, rowCount) = getMapSizeInTiles(spec.levelMin, spec.levelMax, spec.point1, spec.point2)
+                map.mapGson.size = MapGson.MapSize().apply {
+                    x = colCount * tileSize.x
+                    y = rowCount * tileSize.y
+                }
+            }
+
             map.projection = MercatorProjection()
             map.mapGson.calibration.calibration_method = MapLoader.CALIBRATION_METHOD.SIMPLE_2_POINTS.name
-            map.mapGson.calibration.calibration_points = event.calibrationPoints.toList()
+            map.mapGson.calibration.calibration_points = journal.calibrationPoints.toList()
             map.calibrate()
             MapLoader.saveMap(map)
         }
 
         /* Import, and when we're done, calibrate the map */
-        MapImporter.importFromFile(destDir, MapImporter.MapProvider.LIBVIPS,
+        val mapProvider = if (journal.spec.packed) MapImporter.MapProvider.PACK else MapImporter.MapProvider.LIBVIPS
+        MapImporter.importFromFile(destDir, mapProvider,
                 object : MapImporter.MapImportListener {
                     val okMsg = getText(R.string.service_download_finished)
                     val koMsg = getText(R.string.map_download_dialog_error)
@@ -258,7 +475,7 @@ class DownloadService : Service() {
                             calibrate(map)
 
                             /* Notify that the download is finished correctly*/
-                            notifyDownloadFinished(okMsg)
+                            notifyDownloadFinished(okMsg, failedTiles)
                         }
                     }
 
@@ -271,18 +488,30 @@ class DownloadService : Service() {
                 })
 
         /* Finally, stop the service */
+        started = false
         stopSelf()
     }
 
-    private fun notifyDownloadFinished(message: CharSequence) {
+    private fun notifyDownloadFinished(message: CharSequence, failedTiles: List<FailedTile> = listOf()) {
         /* Update the notification */
         notificationBuilder.setContentText(message)
         notificationBuilder.setProgress(0, 0, false)
+        notificationBuilder.setSubText(null)
         notificationBuilder.mActions.clear()
         notificationManager.notify(downloadServiceNofificationId, notificationBuilder.build())
 
         /* Tell the rest of the app that the download is finished */
-        EventBus.getDefault().post(MapDownloadEvent(Status.FINISHED))
+        EventBus.getDefault().post(MapDownloadEvent(Status.FINISHED, missingTiles = failedTiles))
+    }
+
+    private fun notifyRepairFinished(repaired: Int, remaining: Int) {
+        notificationBuilder.setContentText(getString(R.string.service_repair_finished, repaired, remaining))
+        notificationBuilder.setProgress(0, 0, false)
+        notificationBuilder.setSubText(null)
+        notificationBuilder.mActions.clear()
+        notificationManager.notify(downloadServiceNofificationId, notificationBuilder.build())
+        started = false
+        stopSelf()
     }
 
     private fun sendStartedStatus() {
@@ -294,93 +523,224 @@ class DownloadService : Service() {
     }
 }
 
-private fun launchDownloadTask(threadCount: Int, source: MapSource, tileIterator: ThreadSafeTileIterator,
-                               tileWriter: TileWriter) {
-    for (i in 0 until threadCount) {
-        when (source) {
-            MapSource.IGN -> {
-                val ignCredentials = MapSourceCredentials.getIGNCredentials()!!
-
-                val layerRealName = LayerForSource.resolveLayerName(source)
-                val urlTileBuilder = UrlTileBuilderIgn(ignCredentials.api ?: "", layerRealName)
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderIgn(urlTileBuilder, ignCredentials.user
-                        ?: "", ignCredentials.pwd ?: "")
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
-            }
-            MapSource.USGS -> {
-                val urlTileBuilder = UrlTileBuilderUSGS()
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderUSGS(urlTileBuilder)
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
-            }
-            MapSource.OPEN_STREET_MAP -> {
-                val urlTileBuilder = UrlTileBuilderOSM()
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderOSM(urlTileBuilder)
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
+/**
+ * Start as many download threads as the [ConcurrencyController] of the source may allow. The
+ * controller then decides how many of them actually have a request in flight.
+ *
+ * @param providerFactory Makes the [GenericBitmapProvider] of each thread. By default, it is the
+ * provider of the source of the [spec].
+ * @param onFinished Called once all threads are done, with the tiles which couldn't be downloaded
+ */
+internal fun launchDownloadTask(spec: DownloadSpec, tileSpace: TileSpace,
+                                tileWriter: TileWriter, progressAggregator: ProgressAggregator,
+                                controller: ConcurrencyController = ConcurrencyController.forSource(spec.source),
+                                providerFactory: () -> GenericBitmapProvider = { makeBitmapProvider(spec) },
+                                onFinished: (List<FailedTile>) -> Unit) {
+    val telemetry = DownloadTelemetry.start(spec.source, controller)
+    val retryQueue = TileRetryQueue()
+    val runningThreads = AtomicInteger(controller.maxLimit)
+    val onThreadDone = {
+        if (runningThreads.decrementAndGet() == 0) {
+            onFinished(retryQueue.failedTiles)
+        }
+    }
+
+    for (i in 0 until controller.maxLimit) {
+        val downloadThread = TileDownloadThread(tileSpace, providerFactory(), tileWriter, controller,
+                retryQueue, progressAggregator, telemetry, onThreadDone, spec.validate)
+        downloadThread.start()
+    }
+}
+
+/**
+ * A writer which has a folder for each level, and a folder for each row (see [TileSink]). It
+ * does that with using indexes instead of real level, row and col numbers. This greatly
+ * simplifies how a tile is later retrieved from a bitmap provider.
+ * The bytes are written as they were received, so the extension depends on the format sent
+ * by the server, unless an [imageExtension] is given.
+ *
+ * @param tileRuns The tiles which will be written, so their folders can be created ahead
+ * @param dedupStore Records the duplicates of small tiles instead of writing them, if not null
+ * @param imageExtension The extension of the tiles of an existing map, e.g ".webp" for a map
+ * converted by the [com.peterlaurence.trekme.core.map.MapTranscoder]. A repaired tile then
+ * replaces the damaged one instead of being written next to it. Tiles are decoded according to
+ * their content, so the extension doesn't have to match the format.
+ * @param onWritten Called once a tile is written, or recorded as a shared tile
+ */
+internal fun makeTileWriter(destDir: File, tileRuns: List<TileRun>, dedupStore: TileDedupStore?,
+                            imageExtension: String? = null, onWritten: (Tile) -> Unit): TileWriter {
+    val tileSink = TileSink(destDir, tileRuns)
+    return object : TileWriter(destDir) {
+        override fun write(tile: Tile, data: ByteArray): Boolean {
+            val format = data.imageFormat() ?: return false
+            if (dedupStore != null && dedupStore.addTile(tile.indexLevel, tile.indexRow, tile.indexCol, data)) {
+                onWritten(tile)
+                return true
             }
-            MapSource.IGN_SPAIN -> {
-                val urlTileBuilder = UrlTileBuilderIgnSpain()
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderIgnSpain(urlTileBuilder)
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
+            val extension = imageExtension ?: format.extension
+            if (!tileSink.write(tile.indexLevel, tile.indexRow, tile.indexCol.toString() + extension, data)) {
+                return false
             }
+            dedupStore?.onTileWritten(tile.indexLevel, tile.indexRow, tile.indexCol)
+            onWritten(tile)
+            return true
+        }
+    }
+}
+
+/**
+ * Make the [GenericBitmapProvider] of the source of the [spec], and install the [RateLimits] of the
+ * source which pace the requests of the download.
+ */
+private fun makeBitmapProvider(spec: DownloadSpec): GenericBitmapProvider {
+    val bitmapProvider = when (spec.source) {
+        MapSource.IGN -> {
+            val ignCredentials = MapSourceCredentials.getIGNCredentials()!!
+
+            val urlTileBuilder = UrlTileBuilderIgn(ignCredentials.api ?: "", spec.layer)
+            GenericBitmapProvider.getBitmapProviderIgn(urlTileBuilder, ignCredentials.user
+                    ?: "", ignCredentials.pwd ?: "")
+        }
+        MapSource.USGS -> {
+            val urlTileBuilder = UrlTileBuilderUSGS()
+            GenericBitmapProvider.getBitmapProviderUSGS(urlTileBuilder)
+        }
+        MapSource.OPEN_STREET_MAP -> {
+            val urlTileBuilder = UrlTileBuilderOSM()
+            GenericBitmapProvider.getBitmapProviderOSM(urlTileBuilder)
+        }
+        MapSource.IGN_SPAIN -> {
+            val urlTileBuilder = UrlTileBuilderIgnSpain()
+            GenericBitmapProvider.getBitmapProviderIgnSpain(urlTileBuilder)
         }
     }
+    RateLimits.install(spec.source, bitmapProvider.urlTileBuilder)
+    return bitmapProvider
 }
 
 
-private class TileDownloadThread(private val tileIterator: ThreadSafeTileIterator,
+/**
+ * Downloads tiles until all tiles of the [TileSpace] are claimed. The body of each response is
+ * handed to the [TileWriter] as is, without being decoded. When [validate] is true (see
+ * [DownloadSpec.validate]), the image is also checked with a bounds-only decode before being
+ * written.
+ * Each request is subject to the [ConcurrencyController], which is informed of its outcome.
+ * The duration of each step is recorded in the [DownloadTelemetry].
+ *
+ * Failed tiles go to the [TileRetryQueue]. Retries which are due are picked before new tiles, and
+ * once the [TileSpace] is exhausted the thread waits for the remaining retries.
+ */
+private class TileDownloadThread(private val tileSpace: TileSpace,
                                  private val bitmapProvider: GenericBitmapProvider,
-                                 private val tileWriter: TileWriter) : Thread() {
-    val bitmap: Bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565)
-
-    init {
-        val options = BitmapFactory.Options()
-        options.inBitmap = bitmap
-        options.inPreferredConfig = Bitmap.Config.RGB_565
-        bitmapProvider.setBitmapOptions(options)
+                                 private val tileWriter: TileWriter,
+                                 private val controller: ConcurrencyController,
+                                 private val retryQueue: TileRetryQueue,
+                                 private val progressAggregator: ProgressAggregator,
+                                 private val telemetry: DownloadTelemetry,
+                                 private val onDone: () -> Unit,
+                                 private val validate: Boolean = false) : Thread() {
+    private val options = BitmapFactory.Options().apply {
+        inJustDecodeBounds = true
     }
 
     override fun run() {
-        while (DownloadService.started) {
-            val tile = tileIterator.next() ?: break
-            bitmapProvider.getBitmap(tile.level, tile.row, tile.col).also {
-                /* Only write if there was no error */
-                if (it != null && DownloadService.started) {
-                    tileWriter.write(tile, bitmap)
-                }
+        try {
+            while (DownloadService.started) {
+                val entry = retryQueue.pollDue()
+                        ?: tileSpace.next()?.let { retryQueue.newEntry(it) }
+                        ?: retryQueue.awaitRetry { DownloadService.started }
+                        ?: break
+                process(entry)
             }
+        } finally {
+            /* Otherwise, the download would never be seen as finished */
+            onDone()
+        }
+    }
+
+    /**
+     * An unexpected error on a tile (e.g a malformed URL, or a failed write) is handled as a
+     * network error, so it doesn't stop the thread.
+     */
+    private fun process(entry: TileRetryQueue.Entry) {
+        try {
+            download(entry)
+        } catch (e: RuntimeException) {
+            e.printStackTrace()
+            onFailure(entry, TileErrorClass.NETWORK, TileResponse.NO_RESPONSE)
         }
     }
-}
 
-private class ThreadSafeTileIterator(private val tileIterator: Iterator<Tile>, val totalSize: Long,
-                                     val progressListener: (Double) -> Unit) {
-    /* Progress in percent */
-    var progress = 0.0
-    private var tileIndex: Long = 0
-
-    fun next(): Tile? {
-        return synchronized(this) {
-            if (tileIterator.hasNext()) {
-                updateProgress()
-                tileIterator.next()
-            } else {
-                progress = 100.0
-                null
+    private fun download(entry: TileRetryQueue.Entry) {
+        val tile = entry.tile
+        val response = fetch(tile)
+        telemetry.record(response)
+        val data = response.data
+        if (data == null) {
+            onFailure(entry, TileErrorClass.of(response) ?: TileErrorClass.NETWORK, response.code)
+            return
+        }
+
+        val decodeStart = System.nanoTime()
+        val valid = isValid(data)
+        telemetry.record(TilePhase.DECODE, System.nanoTime() - decodeStart)
+        if (!valid) {
+            onFailure(entry, TileErrorClass.DECODE, response.code)
+            return
+        }
+
+        /* Only write if there was no error. A tile which isn't written isn't done */
+        if (DownloadService.started) {
+            val writeStart = System.nanoTime()
+            val written = tileWriter.write(tile, data)
+            telemetry.record(TilePhase.WRITE, System.nanoTime() - writeStart)
+            if (!written) {
+                onFailure(entry, TileErrorClass.WRITE, response.code)
+                return
             }
         }
+        retryQueue.onSuccess(entry)
+        telemetry.recordTile(data.size)
+        progressAggregator.onTileDone(data.size)
+    }
+
+    private fun onFailure(entry: TileRetryQueue.Entry, error: TileErrorClass, code: Int) {
+        telemetry.recordError(error)
+        /* A tile which is given up still counts in the progress */
+        if (!retryQueue.onFailure(entry, error, code)) {
+            progressAggregator.onTileDone(0)
+        }
     }
 
-    private fun updateProgress() {
-        tileIndex++
-        progress = tileIndex * 100.0 / totalSize
-        progressListener(progress)
+    private fun fetch(tile: Tile): TileResponse {
+        controller.acquire()
+        val start = System.nanoTime()
+        var response: TileResponse? = null
+        try {
+            response = bitmapProvider.fetch(tile.level, tile.row, tile.col, paced = true)
+            return response
+        } finally {
+            /* Our own pacing isn't the latency of the server */
+            val latencyNs = System.nanoTime() - start - (response?.waitNs ?: 0)
+            controller.release(response?.code ?: TileResponse.NO_RESPONSE, latencyNs)
+        }
+    }
+
+    /**
+     * Servers sometimes answer with an error message instead of an image.
+     */
+    private fun isValid(data: ByteArray): Boolean {
+        if (data.imageFormat() == null) return false
+        if (!validate) return true
+        options.outWidth = -1
+        BitmapFactory.decodeByteArray(data, 0, data.size, options)
+        return options.outWidth > 0
     }
 }
 
-private abstract class TileWriter(val destDir: File) {
-    abstract fun write(tile: Tile, bitmap: Bitmap)
+internal abstract class TileWriter(val destDir: File) {
+    /**
+     * @return true if the tile was written, or recorded as a shared tile
+     */
+    abstract fun write(tile: Tile, data: ByteArray): Boolean
 }
@@ -1,7 +1,20 @@
 package com.peterlaurence.trekme.service.event;
 
-data class MapDownloadEvent(val status: Status, var progress: Double = 100.0)
+import com.peterlaurence.trekme.core.download.FailedTile
 
+/**
+ * @param missingTiles When the download is [Status.FINISHED], the tiles which couldn't be
+ * downloaded despite the retries
+ */
+data class MapDownloadEvent(val status: Status, var progress: Double = 100.0,
+                            val missingTiles: List<FailedTile> = listOf()) {
+    var tilesPerSecond: Double = 0.0
+    var bytesPerSecond: Double = 0.0
+}
+
+/**
+ * [PAUSED] : the download stopped before the end, and can be resumed later.
+ */
 enum class Status {
-    FINISHED, PENDING, IMPORT_ERROR, STORAGE_ERROR
+    FINISHED, PENDING, PAUSED, IMPORT_ERROR, STORAGE_ERROR
 }
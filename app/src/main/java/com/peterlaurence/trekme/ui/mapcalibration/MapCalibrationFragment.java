@@ -19,6 +19,8 @@ import com.peterlaurence.trekme.ui.mapcalibration.components.CalibrationMarker;
 import com.peterlaurence.trekme.ui.tools.TouchMoveListener;
 import com.peterlaurence.trekme.model.map.MapProvider;
 import com.qozix.tileview.TileView;
+import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.graphics.BitmapRecycler;
 
 import java.lang.ref.WeakReference;
 import java.util.List;
@@ -147,7 +149,11 @@ public class MapCalibrationFragment extends Fragment implements CalibrationModel
         tileView.addMarker(mCalibrationMarker, 0.5, 0.5, -0.5f, -0.5f);
 
         /* The BitmapProvider */
-        tileView.setBitmapProvider(map.getBitmapProvider());
+        BitmapProvider bitmapProvider = map.getBitmapProvider();
+        tileView.setBitmapProvider(bitmapProvider);
+        if (bitmapProvider instanceof BitmapRecycler) {
+            tileView.setBitmapRecycler((BitmapRecycler) bitmapProvider);
+        }
 
         /* Add the TileView to the root view */
         setTileView(tileView);
@@ -1,8 +1,10 @@
 package com.peterlaurence.trekme.ui.mapcreate
 
 import android.content.Context
+import android.content.Intent
 import android.graphics.Color
 import android.os.Bundle
+import androidx.appcompat.app.AlertDialog
 import androidx.fragment.app.Fragment
 import androidx.recyclerview.widget.DividerItemDecoration
 import androidx.recyclerview.widget.LinearLayoutManager
@@ -12,8 +14,10 @@ import android.view.View
 import android.view.ViewGroup
 import android.widget.Button
 import com.peterlaurence.trekme.R
+import com.peterlaurence.trekme.core.download.DownloadJournal
 import com.peterlaurence.trekme.core.mapsource.MapSource
 import com.peterlaurence.trekme.core.mapsource.MapSourceCredentials
+import com.peterlaurence.trekme.service.DownloadService
 import com.peterlaurence.trekme.ui.mapcreate.MapSourceAdapter.MapSourceSelectionListener
 import com.peterlaurence.trekme.ui.mapcreate.events.MapSourceSelectedEvent
 import com.peterlaurence.trekme.ui.mapcreate.events.MapSourceSettingsEvent
@@ -34,6 +38,7 @@ class MapCreateFragment : Fragment(), MapSourceSelectionListener {
     private lateinit var settingsButton: Button
 
     private lateinit var selectedMapSource: MapSource
+    private var resumeDialog: AlertDialog? = null
 
     override fun onAttach(context: Context) {
         super.onAttach(context)
@@ -89,6 +94,37 @@ class MapCreateFragment : Fragment(), MapSourceSelectionListener {
         }
     }
 
+    override fun onResume() {
+        super.onResume()
+
+        proposeDownloadResume()
+    }
+
+    /**
+     * If a previous map download was interrupted, propose to resume it, or to discard it so that
+     * it isn't proposed anymore.
+     */
+    private fun proposeDownloadResume() {
+        if (DownloadService.started || resumeDialog?.isShowing == true) return
+        val interrupted = DownloadJournal.findInterrupted().firstOrNull() ?: return
+
+        val context = context ?: return
+        resumeDialog = AlertDialog.Builder(context)
+                .setMessage(R.string.download_resume_msg)
+                .setPositiveButton(R.string.download_resume) { _, _ ->
+                    activity?.apply {
+                        val intent = Intent(baseContext, DownloadService::class.java)
+                        intent.action = DownloadService.RESUME_ACTION
+                        startService(intent)
+                    }
+                }
+                .setNegativeButton(R.string.download_discard) { _, _ ->
+                    DownloadJournal.discard(interrupted)
+                }
+                .setNeutralButton(R.string.download_later, null)
+                .show()
+    }
+
     /**
      * For instance, settings are only relevant for [MapSource.IGN] provider.
      */
@@ -8,6 +8,7 @@ import androidx.core.os.ConfigurationCompat
 import androidx.appcompat.app.AlertDialog
 import android.view.LayoutInflater
 import android.view.View
+import android.widget.CheckBox
 import android.widget.ImageButton
 import android.widget.SeekBar
 import android.widget.TextView
@@ -15,6 +16,7 @@ import com.peterlaurence.trekme.R
 import com.peterlaurence.trekme.core.mapsource.MapSource
 import com.peterlaurence.trekme.core.mapsource.MapSourceBundle
 import com.peterlaurence.trekme.core.mapsource.wmts.*
+import com.peterlaurence.trekme.model.providers.layers.LayerForSource
 import com.peterlaurence.trekme.ui.mapcreate.components.Area
 import com.peterlaurence.trekme.service.DownloadService
 import com.peterlaurence.trekme.service.event.RequestDownloadMapEvent
@@ -41,6 +43,7 @@ class WmtsLevelsDialog : DialogFragment() {
 
     private lateinit var transactionsTextView: TextView
     private lateinit var mapSizeTextView: TextView
+    private lateinit var packTilesCheckBox: CheckBox
     private var mapSource: MapSource? = null
 
     companion object {
@@ -155,6 +158,7 @@ class WmtsLevelsDialog : DialogFragment() {
 
         transactionsTextView = view.findViewById(R.id.transactions_text_view)
         mapSizeTextView = view.findViewById(R.id.map_size_text_view)
+        packTilesCheckBox = view.findViewById(R.id.pack_tiles_checkbox)
     }
 
     /**
@@ -210,12 +214,14 @@ class WmtsLevelsDialog : DialogFragment() {
     @Subscribe
     fun onDownloadSpecRequest(event: DownloadSpecRequest) {
         val (p1, p2) = getPointsOfArea()
-        val tileSequenceAndCalibration = getTileSequenceAndCalibration(currentMinLevel, currentMaxLevel, p1, p2)
-        val tileCount = getNumberOfTiles(currentMinLevel, currentMaxLevel, p1, p2)
 
         mapSource?.let {
-            EventBus.getDefault().post(RequestDownloadMapEvent(it, tileSequenceAndCalibration.tileSequence,
-                    tileSequenceAndCalibration.calibrationPoints, tileCount))
+            val layer = LayerForSource.resolveLayerName(it)
+            /* Download the center of the area first */
+            val center = Point((p1.X + p2.X) / 2, (p1.Y + p2.Y) / 2)
+            val spec = DownloadSpec(it, layer, currentMinLevel, currentMaxLevel, p1, p2, focus = center,
+                    packed = packTilesCheckBox.isChecked)
+            EventBus.getDefault().post(RequestDownloadMapEvent(spec))
         }
     }
 
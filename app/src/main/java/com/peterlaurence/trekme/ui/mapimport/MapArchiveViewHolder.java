@@ -91,9 +91,8 @@ public class MapArchiveViewHolder extends RecyclerView.ViewHolder {
             mapCreationLabel.setVisibility(View.VISIBLE);
             iconMapExtracted.setVisibility(View.VISIBLE);
 
-            /* Import the extracted map */
-            // TODO : for instance we only import LIBVIPS maps
-            MapImporter.importFromFile(event.outputFolder, MapImporter.MapProvider.LIBVIPS,
+            /* Import the extracted map, with the parser matching its content */
+            MapImporter.importFromFile(event.outputFolder, MapImporter.getMapProvider(event.outputFolder),
                     new MapImporter.MapImportListener() {
                         @Override
                         public void onMapImported(Map map, MapImporter.MapParserStatus status) {
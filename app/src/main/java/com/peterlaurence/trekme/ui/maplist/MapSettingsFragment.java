@@ -7,14 +7,26 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.format.Formatter;
 import android.widget.Toast;
 
 import com.peterlaurence.trekme.R;
 import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.MapTranscoder;
+import com.peterlaurence.trekme.core.map.TilePackConverter;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
+import com.peterlaurence.trekme.core.map.mbtiles.MbTiles;
+import com.peterlaurence.trekme.core.map.mbtiles.MbTilesExporter;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderPack;
+import com.peterlaurence.trekme.service.DownloadService;
 import com.peterlaurence.trekme.ui.maplist.dialogs.ArchiveMapDialog;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
@@ -36,6 +48,8 @@ import androidx.preference.PreferenceFragmentCompat;
  * <li>Change map properties</li>
  * <ul>
  * <li>Change the map name</li>
+ * <li>Check the tiles of the map</li>
+ * <li>Export the map to MBTiles</li>
  * <li>Delete the map</li>
  * </ul>
  * </ul>
@@ -138,6 +152,14 @@ public class MapSettingsFragment extends PreferenceFragmentCompat implements Sha
 
         Preference saveButton = getPreferenceManager().findPreference(
                 getString(R.string.preference_save_button_key));
+        Preference repairButton = getPreferenceManager().findPreference(
+                getString(R.string.preference_repair_button_key));
+        Preference mbTilesExportButton = getPreferenceManager().findPreference(
+                getString(R.string.preference_mbtiles_export_button_key));
+        Preference webpConvertButton = getPreferenceManager().findPreference(
+                getString(R.string.preference_webp_convert_button_key));
+        Preference packButton = getPreferenceManager().findPreference(
+                getString(R.string.preference_pack_button_key));
 
         changeImageButton.setOnPreferenceClickListener(preference -> {
             Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
@@ -223,6 +245,88 @@ public class MapSettingsFragment extends PreferenceFragmentCompat implements Sha
             archiveMapDialog.show(getFragmentManager(), "ArchiveMapDialog");
             return true;
         });
+
+        /* The tiles are checked by the DownloadService, which can download them again */
+        repairButton.setOnPreferenceClickListener(preference -> {
+            Activity activity = getActivity();
+            if (activity == null || map == null || DownloadService.getStarted()) return false;
+            Intent intent = new Intent(activity.getBaseContext(), DownloadService.class);
+            intent.setAction(DownloadService.REPAIR_ACTION);
+            intent.putExtra(DownloadService.EXTRA_MAP_DIR, map.getDirectory().getPath());
+            activity.startService(intent);
+            return true;
+        });
+
+        /* Like the archive, the MBTiles file is placed in the parent folder of the map */
+        mbTilesExportButton.setOnPreferenceClickListener(preference -> {
+            Activity activity = getActivity();
+            if (activity == null || map == null) return false;
+            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.ENGLISH);
+            File outputFile = new File(map.getDirectory().getParentFile(),
+                    map.getName() + "-" + dateFormat.format(new Date()) + MbTiles.FILE_EXTENSION);
+            new Thread(() -> {
+                boolean success = MbTilesExporter.export(map, outputFile);
+                activity.runOnUiThread(() -> {
+                    String msg = success ? activity.getString(R.string.map_mbtiles_export_ok, outputFile.getName())
+                            : activity.getString(R.string.map_mbtiles_export_error);
+                    Toast.makeText(activity, msg, Toast.LENGTH_LONG).show();
+                });
+            }).start();
+            return true;
+        });
+
+        /* The map keeps its current tiles until all of them are converted */
+        webpConvertButton.setOnPreferenceClickListener(preference -> {
+            Activity activity = getActivity();
+            if (activity == null || map == null) return false;
+            /* Lossless WebP can only be encoded from Android 10 */
+            String[] choices = MapTranscoder.isLosslessSupported()
+                    ? new String[]{getString(R.string.map_webp_lossy), getString(R.string.map_webp_lossless)}
+                    : new String[]{getString(R.string.map_webp_lossy)};
+            new AlertDialog.Builder(activity)
+                    .setTitle(R.string.map_webp_convert_string)
+                    .setItems(choices, (dialog, which) -> new Thread(() -> {
+                        MapTranscoder.Result result = MapTranscoder.transcode(map, which == 1);
+                        activity.runOnUiThread(() -> {
+                            String msg = result.getSuccess() ? activity.getString(R.string.map_webp_convert_ok,
+                                    Formatter.formatShortFileSize(activity, result.getBytesSaved()))
+                                    : activity.getString(R.string.map_webp_convert_error);
+                            Toast.makeText(activity, msg, Toast.LENGTH_LONG).show();
+                        });
+                    }).start())
+                    .show();
+            return true;
+        });
+
+        /* The same entry packs the tiles of a map, or unpacks those of a packed map */
+        updatePackButton(packButton);
+        packButton.setOnPreferenceClickListener(preference -> {
+            Activity activity = getActivity();
+            if (activity == null || map == null || DownloadService.getStarted()) return false;
+            boolean packed = isPacked(map);
+            new Thread(() -> {
+                boolean success = packed ? TilePackConverter.unpack(map) : TilePackConverter.pack(map);
+                activity.runOnUiThread(() -> {
+                    int msg = !success ? R.string.map_pack_error
+                            : packed ? R.string.map_unpack_ok : R.string.map_pack_ok;
+                    Toast.makeText(activity, msg, Toast.LENGTH_LONG).show();
+                    updatePackButton(packButton);
+                });
+            }).start();
+            return true;
+        });
+    }
+
+    private boolean isPacked(Map map) {
+        return BitmapProviderPack.GENERATOR_NAME.equals(map.getOrigin());
+    }
+
+    private void updatePackButton(Preference packButton) {
+        Map map = mMapWeakReference.get();
+        if (map == null) return;
+        boolean packed = isPacked(map);
+        packButton.setTitle(packed ? R.string.map_unpack_string : R.string.map_pack_string);
+        packButton.setSummary(packed ? R.string.map_unpack_summary : R.string.map_pack_summary);
     }
 
     @Override
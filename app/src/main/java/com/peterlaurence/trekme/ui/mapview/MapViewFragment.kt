@@ -27,9 +27,11 @@ import com.peterlaurence.trekme.core.map.gson.MarkerGson
 import com.peterlaurence.trekme.core.map.maploader.MapLoader
 import com.peterlaurence.trekme.core.projection.Projection
 import com.peterlaurence.trekme.core.projection.ProjectionTask
+import com.peterlaurence.trekme.core.providers.bitmap.CachedTileProvider
 import com.peterlaurence.trekme.model.map.MapProvider
 import com.peterlaurence.trekme.ui.mapview.events.TrackVisibilityChangedEvent
 import com.qozix.tileview.TileView
+import com.qozix.tileview.graphics.BitmapRecycler
 import com.qozix.tileview.widgets.ZoomPanLayout
 
 import org.greenrobot.eventbus.EventBus
@@ -494,7 +496,17 @@ class MapViewFragment : Fragment(), ProjectionTask.ProjectionUpdateLister,
         setTileViewBounds(tileView, map)
 
         /* The BitmapProvider */
-        tileView.setBitmapProvider(map.bitmapProvider)
+        val bitmapProvider = map.bitmapProvider
+        tileView.setBitmapProvider(bitmapProvider)
+        if (bitmapProvider is BitmapRecycler) {
+            tileView.setBitmapRecycler(bitmapProvider)
+
+            /* Tiles given back to the recycler stay cached, so they can be decoded ahead of time */
+            tileView.setTilePrefetcher(bitmapProvider, bitmapProvider)
+        }
+        if (bitmapProvider is CachedTileProvider && bitmapProvider is BitmapRecycler) {
+            tileView.setTilePlaceholders(bitmapProvider, bitmapProvider)
+        }
 
         /* The position + orientation reticule */
         try {
@@ -0,0 +1,155 @@
+package com.peterlaurence.trekme.ui.mapview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.view.View;
+
+import com.peterlaurence.trekme.core.providers.bitmap.CachedTileProvider;
+import com.qozix.tileview.detail.DetailLevel;
+import com.qozix.tileview.graphics.BitmapRecycler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.peterlaurence.trekme.core.map.TileDedupKt.tileKey;
+
+/**
+ * Drawn below the tiles of a {@link TileViewExtended}. While tiles are being decoded, it fills
+ * their cells with the tiles of the neighbouring detail levels which are already in memory : the
+ * parent tiles upscaled, then the child tiles downscaled on top of them. Each decoded tile is drawn
+ * over its placeholder, so it replaces it as soon as it's ready.
+ * <p>
+ * The bitmaps drawn are held until they're no longer needed, then given back to the
+ * {@link BitmapRecycler}.
+ */
+class TilePlaceholderView extends View {
+    /* Above this, drawing the child tiles would cost more than it helps */
+    private static final int MAX_CHILD_TILES = 64;
+
+    private final CachedTileProvider mProvider;
+    private final BitmapRecycler mBitmapRecycler;
+    private final List<DetailLevel> mDetailLevels;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mViewport = new Rect();
+    private final RectF mDst = new RectF();
+    private Map<Long, Bitmap> mHeldBitmaps = new HashMap<>();
+    private float mScale = 1;
+    private boolean mActive = false;
+
+    /**
+     * @param detailLevels the detail levels of the TileView, sorted by scale
+     */
+    TilePlaceholderView(Context context, CachedTileProvider provider, BitmapRecycler bitmapRecycler,
+                        List<DetailLevel> detailLevels) {
+        super(context);
+        mProvider = provider;
+        mBitmapRecycler = bitmapRecycler;
+        mDetailLevels = detailLevels;
+    }
+
+    void setScale(float scale) {
+        mScale = scale;
+        invalidate();
+    }
+
+    /**
+     * @param left the left of the viewport, in scaled pixels
+     * @param top  the top of the viewport, in scaled pixels
+     */
+    void setViewport(int left, int top, int width, int height) {
+        mViewport.set(left, top, left + width, top + height);
+        if (mActive) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Placeholders are only drawn while the TileView decodes tiles.
+     */
+    void setActive(boolean active) {
+        if (mActive == active) return;
+        mActive = active;
+        if (!active) {
+            releaseAll(new HashMap<>());
+        }
+        invalidate();
+    }
+
+    void destroy() {
+        mActive = false;
+        releaseAll(new HashMap<>());
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (!mActive || mDetailLevels.isEmpty()) return;
+
+        int index = getLevelIndex();
+        Map<Long, Bitmap> used = new HashMap<>();
+        if (index > 0) {
+            drawLevel(canvas, mDetailLevels.get(index - 1), used, Integer.MAX_VALUE);
+        }
+        if (index < mDetailLevels.size() - 1) {
+            drawLevel(canvas, mDetailLevels.get(index + 1), used, MAX_CHILD_TILES);
+        }
+        releaseAll(used);
+    }
+
+    /**
+     * Same choice as the DetailLevelManager : the level with the lowest scale which is not below
+     * the current scale, or the highest level.
+     */
+    private int getLevelIndex() {
+        for (int i = 0; i < mDetailLevels.size(); i++) {
+            if (mDetailLevels.get(i).getScale() >= mScale) return i;
+        }
+        return mDetailLevels.size() - 1;
+    }
+
+    private void drawLevel(Canvas canvas, DetailLevel level, Map<Long, Bitmap> used, int maxTiles) {
+        if (!(level.getData() instanceof Integer)) return;
+        int levelIndex = (Integer) level.getData();
+
+        /* Scaled pixels for one pixel of the level */
+        float ratio = mScale / level.getScale();
+        int tileWidth = level.getTileWidth();
+        int tileHeight = level.getTileHeight();
+        int colLeft = Math.max(0, (int) (mViewport.left / ratio / tileWidth));
+        int rowTop = Math.max(0, (int) (mViewport.top / ratio / tileHeight));
+        int colRight = (int) (mViewport.right / ratio / tileWidth);
+        int rowBottom = (int) (mViewport.bottom / ratio / tileHeight);
+        if ((colRight - colLeft + 1) * (rowBottom - rowTop + 1) > maxTiles) return;
+
+        for (int row = rowTop; row <= rowBottom; row++) {
+            for (int col = colLeft; col <= colRight; col++) {
+                long key = tileKey(levelIndex, row, col);
+                Bitmap bitmap = mHeldBitmaps.remove(key);
+                if (bitmap == null) {
+                    bitmap = mProvider.getCachedBitmap(levelIndex, row, col);
+                    if (bitmap == null) continue;
+                }
+                used.put(key, bitmap);
+
+                float left = col * tileWidth * ratio;
+                float top = row * tileHeight * ratio;
+                mDst.set(left, top, left + bitmap.getWidth() * ratio, top + bitmap.getHeight() * ratio);
+                canvas.drawBitmap(bitmap, null, mDst, mPaint);
+            }
+        }
+    }
+
+    /**
+     * Give back the held bitmaps, except those in use.
+     */
+    private void releaseAll(Map<Long, Bitmap> used) {
+        for (Bitmap bitmap : mHeldBitmaps.values()) {
+            mBitmapRecycler.recycleBitmap(bitmap);
+        }
+        mHeldBitmaps = used;
+    }
+}
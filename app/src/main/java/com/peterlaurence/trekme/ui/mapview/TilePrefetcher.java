@@ -0,0 +1,96 @@
+package com.peterlaurence.trekme.ui.mapview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.graphics.BitmapRecycler;
+import com.qozix.tileview.tiles.Tile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes in the background the tiles which are about to be displayed, so that the
+ * {@link BitmapProvider} already has them in its cache when the TileView asks for them. Each
+ * decoded bitmap is given back to the {@link BitmapRecycler} right away, which keeps it cached.
+ * <p>
+ * Only the last prediction matters : a new call to {@link #prefetch(List)} drops the tiles of the
+ * previous one which were not decoded yet. At most {@link #MAX_PENDING} tiles are waiting.
+ */
+class TilePrefetcher {
+    private static final int MAX_PENDING = 32;
+
+    private final Context mContext;
+    private final BitmapProvider mBitmapProvider;
+    private final BitmapRecycler mBitmapRecycler;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ArrayDeque<Tile> mPending = new ArrayDeque<>();
+    private List<Tile> mLastRequest = new ArrayList<>();
+    private boolean mDraining = false;
+    private boolean mShutdown = false;
+
+    TilePrefetcher(Context context, BitmapProvider bitmapProvider, BitmapRecycler bitmapRecycler) {
+        mContext = context.getApplicationContext();
+        mBitmapProvider = bitmapProvider;
+        mBitmapRecycler = bitmapRecycler;
+    }
+
+    /**
+     * Replace the tiles waiting to be decoded. They are decoded in the given order.
+     */
+    void prefetch(List<Tile> tiles) {
+        synchronized (mPending) {
+            if (mShutdown || tiles.equals(mLastRequest)) return;
+            mLastRequest = tiles;
+
+            mPending.clear();
+            for (Tile tile : tiles) {
+                if (mPending.size() == MAX_PENDING) break;
+                mPending.add(tile);
+            }
+            if (!mDraining && !mPending.isEmpty()) {
+                mDraining = true;
+                mExecutor.execute(this::drain);
+            }
+        }
+    }
+
+    void cancel() {
+        synchronized (mPending) {
+            mPending.clear();
+            mLastRequest = new ArrayList<>();
+        }
+    }
+
+    void shutdown() {
+        synchronized (mPending) {
+            mShutdown = true;
+            mPending.clear();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void drain() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Tile tile;
+            synchronized (mPending) {
+                tile = mPending.poll();
+                if (tile == null) {
+                    mDraining = false;
+                    return;
+                }
+            }
+
+            Bitmap bitmap = mBitmapProvider.getBitmap(tile, mContext);
+            if (bitmap != null) {
+                mBitmapRecycler.recycleBitmap(bitmap);
+            }
+        }
+    }
+}
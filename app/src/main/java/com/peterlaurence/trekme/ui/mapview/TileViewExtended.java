@@ -1,23 +1,45 @@
 package com.peterlaurence.trekme.ui.mapview;
 
 import android.content.Context;
+import android.graphics.Rect;
 import androidx.annotation.Nullable;
 import android.view.MotionEvent;
+import android.widget.Scroller;
 
 import com.peterlaurence.trekme.core.map.gson.RouteGson;
+import com.peterlaurence.trekme.core.providers.bitmap.CachedTileProvider;
 import com.peterlaurence.trekme.ui.mapview.components.PathView;
 import com.qozix.tileview.TileView;
+import com.qozix.tileview.detail.DetailLevel;
+import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.graphics.BitmapRecycler;
+import com.qozix.tileview.tiles.Tile;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Specialization of TileView to allow custom custom control of touch events.
+ * <p>
+ * When a {@link TilePrefetcher} is set, the tiles about to be displayed are decoded ahead of time :
+ * <ul>
+ * <li>during a fling, the tiles along the path to its end</li>
+ * <li>while dragging, the tiles in the direction of the move</li>
+ * <li>while pinching, the tiles of the next detail level</li>
+ * </ul>
+ * When a {@link TilePlaceholderView} is set, the cells of the tiles being decoded show the tiles of
+ * the neighbouring levels which are already in memory.
  *
  * @author peterLaurence on 28/03/16.
  */
 public class TileViewExtended extends TileView {
+    /* While dragging, the viewport is predicted this many move events ahead */
+    private static final int DRAG_LOOKAHEAD = 10;
+    private static final int FLING_STEPS = 3;
 
     private WeakReference<SingleTapStaticListener> mSingleTapListenerWeakReference;
     private boolean mScrollingAtStart;
@@ -26,6 +48,13 @@ public class TileViewExtended extends TileView {
     private List<ScaleChangeListener> mScaleChangeListeners;
     private PathView mPathView;
 
+    private TilePrefetcher mTilePrefetcher;
+    private TilePlaceholderView mPlaceholderView;
+    private final Runnable mHidePlaceholders = () -> {
+        if (mPlaceholderView != null) mPlaceholderView.setActive(false);
+    };
+    private final List<DetailLevel> mDetailLevels = new ArrayList<>();
+
     public TileViewExtended(Context context) {
         super(context);
 
@@ -60,7 +89,98 @@ public class TileViewExtended extends TileView {
             }
         }
 
-        return super.onScroll(motionEvent, motionEvent1, v, v1);
+        boolean consumed = super.onScroll(motionEvent, motionEvent1, v, v1);
+        if (mTilePrefetcher != null && !isScaling()) {
+            int dx = clamp((int) (v * DRAG_LOOKAHEAD), -getWidth(), getWidth());
+            int dy = clamp((int) (v1 * DRAG_LOOKAHEAD), -getHeight(), getHeight());
+            prefetchPath(getScrollX() + dx, getScrollY() + dy, 1);
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean onFling(MotionEvent event1, MotionEvent event2, float velocityX, float velocityY) {
+        boolean consumed = super.onFling(event1, event2, velocityX, velocityY);
+        if (mTilePrefetcher != null) {
+            Scroller scroller = getScroller();
+            prefetchPath(scroller.getFinalX(), scroller.getFinalY(), FLING_STEPS);
+        }
+        return consumed;
+    }
+
+    @Override
+    public void addDetailLevel(float detailScale, Object data, int tileWidth, int tileHeight) {
+        super.addDetailLevel(detailScale, data, tileWidth, tileHeight);
+
+        /* The levels of the DetailLevelManager can't be read, so keep a copy */
+        mDetailLevels.add(new DetailLevel(getDetailLevelManager(), detailScale, data, tileWidth, tileHeight));
+        Collections.sort(mDetailLevels);
+    }
+
+    /**
+     * Decode the tiles ahead of time. It only makes sense when the {@link BitmapProvider} keeps
+     * the tiles given back to its {@link BitmapRecycler}.
+     */
+    public void setTilePrefetcher(BitmapProvider bitmapProvider, BitmapRecycler bitmapRecycler) {
+        if (mTilePrefetcher != null) {
+            mTilePrefetcher.shutdown();
+        }
+        mTilePrefetcher = new TilePrefetcher(getContext(), bitmapProvider, bitmapRecycler);
+    }
+
+    /**
+     * Show the tiles of the neighbouring levels while tiles are being decoded.
+     */
+    public void setTilePlaceholders(CachedTileProvider provider, BitmapRecycler bitmapRecycler) {
+        if (mPlaceholderView != null) {
+            mPlaceholderView.destroy();
+            removeView(mPlaceholderView);
+        }
+        mPlaceholderView = new TilePlaceholderView(getContext(), provider, bitmapRecycler, mDetailLevels);
+        mPlaceholderView.setScale(getScale());
+
+        /* Below the tiles */
+        addView(mPlaceholderView, 0);
+    }
+
+    @Override
+    public void onRenderStart() {
+        super.onRenderStart();
+        if (mPlaceholderView != null) {
+            removeCallbacks(mHidePlaceholders);
+            updatePlaceholderViewport();
+            mPlaceholderView.setActive(true);
+        }
+    }
+
+    @Override
+    public void onRenderComplete() {
+        super.onRenderComplete();
+        if (mPlaceholderView != null) {
+            /* Let the last tiles fade in above their placeholder */
+            int delay = getTileCanvasViewGroup().getTransitionsEnabled() ?
+                    getTileCanvasViewGroup().getTransitionDuration() : 0;
+            postDelayed(mHidePlaceholders, delay);
+        }
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        updatePlaceholderViewport();
+    }
+
+    @Override
+    public void destroy() {
+        if (mTilePrefetcher != null) {
+            mTilePrefetcher.shutdown();
+            mTilePrefetcher = null;
+        }
+        if (mPlaceholderView != null) {
+            removeCallbacks(mHidePlaceholders);
+            mPlaceholderView.destroy();
+        }
+        super.destroy();
     }
 
     public void setSingleTapListener(SingleTapStaticListener listener) {
@@ -94,6 +214,15 @@ public class TileViewExtended extends TileView {
         for (ScaleChangeListener listener : mScaleChangeListeners) {
             listener.onScaleChanged(scale);
         }
+
+        if (mPlaceholderView != null) {
+            mPlaceholderView.setScale(scale);
+            updatePlaceholderViewport();
+        }
+
+        if (mTilePrefetcher != null && isScaling() && scale != previous) {
+            prefetchNextLevel(scale, scale > previous);
+        }
     }
 
     public void addScaleChangeListener(ScaleChangeListener listener) {
@@ -108,6 +237,109 @@ public class TileViewExtended extends TileView {
         void onScaleChanged(float scale);
     }
 
+    private void updatePlaceholderViewport() {
+        if (mPlaceholderView != null) {
+            /* The children of the TileView are laid out at the offset */
+            mPlaceholderView.setViewport(getScrollX() - getOffsetX(), getScrollY() - getOffsetY(),
+                    getWidth(), getHeight());
+        }
+    }
+
+    /**
+     * Prefetch the tiles of the viewports between the current one and the one at the given scroll
+     * position, without those already visible.
+     */
+    private void prefetchPath(int targetScrollX, int targetScrollY, int steps) {
+        float scale = getScale();
+        DetailLevel level = findDetailLevel(scale);
+        if (level == null) return;
+
+        int scrollX = getScrollX();
+        int scrollY = getScrollY();
+        Set<Long> added = new HashSet<>();
+        addTiles(getTileRange(level, scrollX, scrollY, scale, 0, 0), level, added, null);
+
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 1; i <= steps; i++) {
+            int x = scrollX + (targetScrollX - scrollX) * i / steps;
+            int y = scrollY + (targetScrollY - scrollY) * i / steps;
+            addTiles(getTileRange(level, x, y, scale, 0, 0), level, added, tiles);
+        }
+        mTilePrefetcher.prefetch(tiles);
+    }
+
+    /**
+     * While pinching, prefetch the tiles of the detail level which comes next, from the center of
+     * the viewport. When zooming out, the viewport will grow so its surroundings are included.
+     */
+    private void prefetchNextLevel(float scale, boolean zoomIn) {
+        DetailLevel current = findDetailLevel(scale);
+        int index = mDetailLevels.indexOf(current) + (zoomIn ? 1 : -1);
+        if (current == null || index < 0 || index >= mDetailLevels.size()) {
+            mTilePrefetcher.cancel();
+            return;
+        }
+        DetailLevel level = mDetailLevels.get(index);
+
+        int marginX = zoomIn ? 0 : getWidth() / 2;
+        int marginY = zoomIn ? 0 : getHeight() / 2;
+        Rect range = getTileRange(level, getScrollX(), getScrollY(), scale, marginX, marginY);
+        List<Tile> tiles = new ArrayList<>();
+        addTiles(range, level, new HashSet<>(), tiles);
+
+        int centerCol = range.centerX();
+        int centerRow = range.centerY();
+        Collections.sort(tiles, (t1, t2) -> Integer.compare(
+                Math.abs(t1.getColumn() - centerCol) + Math.abs(t1.getRow() - centerRow),
+                Math.abs(t2.getColumn() - centerCol) + Math.abs(t2.getRow() - centerRow)));
+        mTilePrefetcher.prefetch(tiles);
+    }
+
+    /**
+     * Same choice as the DetailLevelManager : the level with the lowest scale which is not below
+     * the given scale, or the highest level.
+     */
+    @Nullable
+    private DetailLevel findDetailLevel(float scale) {
+        for (DetailLevel level : mDetailLevels) {
+            if (level.getScale() >= scale) return level;
+        }
+        return mDetailLevels.isEmpty() ? null : mDetailLevels.get(mDetailLevels.size() - 1);
+    }
+
+    /**
+     * The columns (left, right) and rows (top, bottom) of the tiles of a level which cover a
+     * viewport, bounds included.
+     */
+    private Rect getTileRange(DetailLevel level, int scrollX, int scrollY, float scale, int marginX, int marginY) {
+        float factor = level.getScale() / scale;
+        int tileWidth = level.getTileWidth();
+        int tileHeight = level.getTileHeight();
+        int colMax = (int) Math.ceil(getBaseWidth() * level.getScale() / tileWidth) - 1;
+        int rowMax = (int) Math.ceil(getBaseHeight() * level.getScale() / tileHeight) - 1;
+
+        return new Rect(
+                clamp((int) ((scrollX - marginX) * factor / tileWidth), 0, colMax),
+                clamp((int) ((scrollY - marginY) * factor / tileHeight), 0, rowMax),
+                clamp((int) ((scrollX + getWidth() + marginX) * factor / tileWidth), 0, colMax),
+                clamp((int) ((scrollY + getHeight() + marginY) * factor / tileHeight), 0, rowMax));
+    }
+
+    private void addTiles(Rect range, DetailLevel level, Set<Long> added, @Nullable List<Tile> tiles) {
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                if (added.add(((long) row << 32) | col) && tiles != null) {
+                    tiles.add(new Tile(col, row, level.getTileWidth(), level.getTileHeight(),
+                            level.getData(), level));
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
     private void createPathView() {
         mPathView = new PathView(getContext());
         addView(mPathView, getChildCount() - 1);
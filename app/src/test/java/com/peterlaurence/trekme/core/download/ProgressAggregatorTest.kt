@@ -0,0 +1,34 @@
+package com.peterlaurence.trekme.core.download
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class ProgressAggregatorTest {
+    @Test
+    fun throttleTest() {
+        val reports = mutableListOf<DownloadProgress>()
+        val aggregator = ProgressAggregator(100_000, minIntervalMs = 60_000) { reports.add(it) }
+        repeat(100_000) { aggregator.onTileDone(10_000) }
+        aggregator.finish()
+
+        /* One report every 0.5 %, at most */
+        assertTrue(reports.size in 150..201)
+        assertEquals(100.0, reports.last().progress, 0.0)
+        assertTrue(reports.zipWithNext().all { (a, b) -> a.progress <= b.progress })
+        assertTrue(reports.last().bytesPerSecond > 0)
+
+        /* The completion is reported once */
+        aggregator.finish()
+        assertEquals(100.0, reports.last().progress, 0.0)
+        assertEquals(1, reports.count { it.progress == 100.0 })
+    }
+
+    @Test
+    fun resumeTest() {
+        val reports = mutableListOf<DownloadProgress>()
+        val aggregator = ProgressAggregator(1000, startCount = 500) { reports.add(it) }
+        assertEquals(50.0, aggregator.progress.progress, 0.0)
+        aggregator.finish()
+        assertEquals(listOf(100.0), reports.map { it.progress })
+    }
+}
@@ -0,0 +1,34 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import org.junit.Assert.*
+import org.junit.Test
+
+class RateLimitsTest {
+    @Test
+    fun parseTest() {
+        val limits = RateLimits.parse("""
+            {
+              "IGN": {"requestsPerSecond": 5, "burst": 10, "dailyBudget": 20000},
+              "OPEN_STREET_MAP": {"requestsPerSecond": 1},
+              "UNKNOWN": {"requestsPerSecond": 3}
+            }
+        """)
+        assertEquals(setOf(MapSource.IGN, MapSource.OPEN_STREET_MAP), limits.keys)
+
+        val ign = limits.getValue(MapSource.IGN)
+        assertEquals(5.0, ign.requestsPerSecond, 0.0)
+        assertEquals(10, ign.burst)
+        assertEquals(20000, ign.dailyBudget)
+
+        /* An entry replaces all the limits of its source */
+        assertNull(limits.getValue(MapSource.OPEN_STREET_MAP).dailyBudget)
+    }
+
+    @Test
+    fun defaultTest() {
+        /* The quota of IGN keys is protected by default */
+        assertNotNull(RateLimits.defaultForSource(MapSource.IGN).dailyBudget)
+        assertTrue(RateLimits.defaultForSource(MapSource.OPEN_STREET_MAP).requestsPerSecond > 0)
+    }
+}
@@ -0,0 +1,100 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.map.TileDedupStore
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRun
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.awt.image.BufferedImage
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import javax.imageio.ImageIO
+
+class TileIntegrityScannerTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val jpeg = encode("jpg")
+    private val png = encode("png")
+
+    @Test
+    fun scanTest() {
+        val mapDir = tempFolder.newFolder()
+        writeTile(mapDir, 0, 0, 0, ".jpg", jpeg)
+        writeTile(mapDir, 0, 0, 1, ".jpg", jpeg.copyOf(jpeg.size / 2))
+        writeTile(mapDir, 0, 0, 2, ".png", png)
+        writeTile(mapDir, 0, 0, 3, ".png", png.copyOf().also { it[png.size / 2] = (it[png.size / 2] + 1).toByte() })
+        /* Padding after the EOI marker needs a decode */
+        writeTile(mapDir, 0, 1, 0, ".jpg", jpeg + ByteArray(4))
+
+        val decoded = mutableListOf<String>()
+        val scanner = TileIntegrityScanner(mapDir, { decoded.add(it.name); true }, 4)
+
+        /* Without expected tiles, only corrupt files are reported */
+        assertEquals(listOf(DamagedTile(0, 0, 1, false), DamagedTile(0, 0, 3, false)), scanner.scan())
+        assertEquals(listOf("0.jpg"), decoded)
+
+        /* Column 4 of the first row is missing */
+        val runs = listOf(TileRun(10, 20, 30, 34, 0, 0, 0), TileRun(10, 21, 30, 30, 0, 1, 0))
+        val damaged = scanner.scan(runs)
+        assertEquals(listOf(DamagedTile(0, 0, 1, false), DamagedTile(0, 0, 3, false),
+                DamagedTile(0, 0, 4, true)), damaged)
+
+        assertEquals(listOf(TileRun(10, 20, 31, 31, 0, 0, 1), TileRun(10, 20, 33, 33, 0, 0, 3),
+                TileRun(10, 20, 34, 34, 0, 0, 4)), damaged.toTileRuns(runs))
+    }
+
+    @Test
+    fun webpTest() {
+        val mapDir = tempFolder.newFolder()
+        val webp = webp(20)
+        writeTile(mapDir, 0, 0, 0, ".webp", webp)
+        writeTile(mapDir, 0, 0, 1, ".webp", webp.copyOf(webp.size - 5))
+        /* Trailing bytes need a decode */
+        writeTile(mapDir, 0, 0, 2, ".webp", webp + ByteArray(4))
+
+        val decoded = mutableListOf<String>()
+        val scanner = TileIntegrityScanner(mapDir, { decoded.add(it.name); false }, 1)
+        assertEquals(listOf(DamagedTile(0, 0, 1, false), DamagedTile(0, 0, 2, false)), scanner.scan())
+        assertEquals(listOf("2.webp"), decoded)
+    }
+
+    @Test
+    fun sharedTileTest() {
+        val mapDir = tempFolder.newFolder()
+        val store = TileDedupStore(mapDir)
+        store.addTile(0, 0, 0, jpeg)
+        writeTile(mapDir, 0, 0, 0, ".jpg", jpeg)
+        store.onTileWritten(0, 0, 0)
+        assertTrue(store.addTile(0, 0, 1, jpeg))
+        store.close()
+
+        val scanner = TileIntegrityScanner(mapDir, { false })
+        assertTrue(scanner.scan(listOf(TileRun(10, 20, 30, 31, 0, 0, 0))).isEmpty())
+    }
+
+    private fun encode(format: String): ByteArray {
+        val image = BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB)
+        for (x in 0 until 64) image.setRGB(x, x, 0x336699)
+        return ByteArrayOutputStream().also { ImageIO.write(image, format, it) }.toByteArray()
+    }
+
+    /**
+     * A RIFF header followed by a single VP8L chunk of [dataSize] bytes.
+     */
+    private fun webp(dataSize: Int): ByteArray {
+        val buffer = ByteBuffer.allocate(20 + dataSize).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.put("RIFF".toByteArray()).putInt(12 + dataSize).put("WEBP".toByteArray())
+        buffer.put("VP8L".toByteArray()).putInt(dataSize)
+        return buffer.array()
+    }
+
+    private fun writeTile(mapDir: File, level: Int, row: Int, col: Int, ext: String, data: ByteArray) {
+        val rowDir = File(mapDir, "$level/$row")
+        rowDir.mkdirs()
+        File(rowDir, "$col$ext").writeBytes(data)
+    }
+}
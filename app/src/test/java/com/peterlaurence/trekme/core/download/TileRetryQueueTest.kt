@@ -0,0 +1,59 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.providers.http.TileResponse
+import org.junit.Assert.*
+import org.junit.Test
+
+class TileRetryQueueTest {
+    private val tile = Tile(12, 1, 2, 0, 0, 0)
+
+    @Test
+    fun retryTest() {
+        val queue = TileRetryQueue(maxAttempts = 3, baseDelayMs = 1, maxDelayMs = 1)
+        var entry = queue.newEntry(tile)
+        assertEquals(1, entry.attempt)
+
+        /* A server error is retried, until the last attempt */
+        queue.onFailure(entry, TileErrorClass.HTTP_SERVER, 503)
+        entry = queue.awaitRetry { true }!!
+        assertEquals(2, entry.attempt)
+        queue.onFailure(entry, TileErrorClass.HTTP_SERVER, 503)
+        entry = queue.awaitRetry { true }!!
+        assertEquals(3, entry.attempt)
+        queue.onFailure(entry, TileErrorClass.HTTP_SERVER, 503)
+
+        assertNull(queue.awaitRetry { true })
+        assertEquals(listOf(FailedTile(tile, TileErrorClass.HTTP_SERVER)), queue.failedTiles)
+    }
+
+    @Test
+    fun clientErrorTest() {
+        val queue = TileRetryQueue(baseDelayMs = 1, maxDelayMs = 1)
+
+        /* A 404 isn't retried */
+        queue.onFailure(queue.newEntry(tile), TileErrorClass.HTTP_CLIENT, 404)
+        assertNull(queue.awaitRetry { true })
+        assertEquals(1, queue.failedTiles.size)
+
+        /* But a 429 is */
+        queue.onFailure(queue.newEntry(tile), TileErrorClass.HTTP_CLIENT, 429)
+        val entry = queue.awaitRetry { true }!!
+        queue.onSuccess(entry)
+        assertNull(queue.awaitRetry { true })
+        assertEquals(1, queue.failedTiles.size)
+    }
+
+    @Test
+    fun budgetTest() {
+        val queue = TileRetryQueue(baseDelayMs = 1, maxDelayMs = 1)
+        val response = TileResponse(TileResponse.BUDGET_EXHAUSTED, null, null)
+        val error = TileErrorClass.of(response)!!
+        assertEquals(TileErrorClass.BUDGET, error)
+
+        /* It's no use retrying before tomorrow */
+        queue.onFailure(queue.newEntry(tile), error, response.code)
+        assertNull(queue.awaitRetry { true })
+        assertEquals(listOf(FailedTile(tile, TileErrorClass.BUDGET)), queue.failedTiles)
+    }
+}
@@ -0,0 +1,32 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRun
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class TileSinkTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun writeTest() {
+        val destDir = tempFolder.newFolder()
+        val runs = listOf(TileRun(10, 20, 30, 31, 0, 0, 0), TileRun(10, 21, 30, 31, 0, 1, 0),
+                TileRun(11, 40, 60, 63, 1, 0, 0))
+        val sink = TileSink(destDir, runs)
+        val data = byteArrayOf(1, 2, 3)
+
+        /* All the rows of the level are created along with the first tile */
+        assertTrue(sink.write(0, 0, "0.jpg", data))
+        assertTrue(File(destDir, "0/1").isDirectory)
+        assertFalse(File(destDir, "1").exists())
+        assertArrayEquals(data, File(destDir, "0/0/0.jpg").readBytes())
+
+        /* A row which isn't part of the runs is still created */
+        assertTrue(sink.write(2, 5, "3.png", data))
+        assertArrayEquals(data, File(destDir, "2/5/3.png").readBytes())
+    }
+}
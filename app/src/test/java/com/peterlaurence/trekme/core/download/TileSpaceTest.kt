@@ -0,0 +1,55 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.wmts.Point
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.getTileRuns
+import com.peterlaurence.trekme.core.mapsource.wmts.getTileSequenceAndCalibration
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+
+class TileSpaceTest {
+    private val p1 = Point(489158.0, 5465442.0)
+    private val p2 = Point(507736.0, 5451649.0)
+
+    @Test
+    fun sameTilesAsSequenceTest() {
+        val tileSpace = TileSpace(getTileRuns(12, 16, p1, p2))
+        val tiles = generateSequence { tileSpace.next() }.toList()
+        val expected = getTileSequenceAndCalibration(12, 16, p1, p2).tileSequence.toList()
+
+        assertEquals(expected, tiles)
+        assertEquals(expected.size.toLong(), tileSpace.size)
+    }
+
+    @Test
+    fun concurrentClaimTest() {
+        val tileSpace = TileSpace(getTileRuns(12, 16, p1, p2))
+        val claimed = ConcurrentLinkedQueue<Tile>()
+        val threads = (0 until 8).map {
+            Thread {
+                while (true) {
+                    claimed.add(tileSpace.next() ?: break)
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+
+        /* Each tile is claimed exactly once */
+        assertEquals(tileSpace.size, claimed.size.toLong())
+        assertEquals(claimed.size, HashSet(claimed).size)
+    }
+
+    @Test
+    fun resumeTest() {
+        val runs = getTileRuns(12, 14, p1, p2)
+        val done = getTileSequenceAndCalibration(12, 14, p1, p2).tileSequence.filter { it.col % 2 == 0 }.toSet()
+        val tileSpace = TileSpace(runs) { it in done }
+        val tiles = generateSequence { tileSpace.next() }.toList()
+
+        assertTrue(tiles.none { it in done })
+        assertEquals(tileSpace.size, (tiles.size + done.size).toLong())
+    }
+}
@@ -0,0 +1,116 @@
+package com.peterlaurence.trekme.core.map
+
+import com.peterlaurence.trekme.BuildConfig
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowBitmapFactory
+import java.io.File
+
+/**
+ * Robolectric doesn't decode nor encode images: the size of a source tile is given as a hint, and
+ * a written tile holds the description of its bitmap, which starts with its size.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class PyramidBuilderTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun missingLevelsTest() {
+        val mapDir = tempFolder.newFolder()
+        File(mapDir, "4").mkdir()
+        File(mapDir, "2").mkdir()
+        File(mapDir, "thumbnail").mkdir()
+
+        val builder = PyramidBuilder(mapDir, ".jpg")
+        assertEquals(listOf(3, 1, 0), builder.missingLevels)
+
+        /* A level whose build was interrupted is built again */
+        File(mapDir, "3").mkdir()
+        File(mapDir, PyramidBuilder.PROGRESS_FILE_NAME).writeText("3")
+        assertEquals(listOf(3, 1, 0), builder.missingLevels)
+    }
+
+    @Test
+    fun completeMapTest() {
+        val mapDir = tempFolder.newFolder()
+        File(mapDir, "0").mkdir()
+        File(mapDir, "1").mkdir()
+
+        val builder = PyramidBuilder(mapDir, ".jpg")
+        assertEquals(listOf<Int>(), builder.missingLevels)
+        assertEquals(listOf<Int>(), PyramidBuilder(tempFolder.newFolder(), ".jpg").missingLevels)
+    }
+
+    @Test
+    fun buildLevelTest() {
+        val mapDir = tempFolder.newFolder()
+        /* The right column is 100px wide and the bottom row 60px high. The first two tiles of the
+         * left column are missing, as in a sparse map. */
+        for (row in 0..2) {
+            for (col in 0..2) {
+                if (col == 0 && row < 2) continue
+                writeTile(mapDir, 2, row, col, if (col == 2) 100 else 256, if (row == 2) 60 else 256)
+            }
+        }
+
+        assertTrue(PyramidBuilder(mapDir, ".jpg").build())
+
+        assertEquals(4, tileCount(mapDir, 1))
+        assertEquals(1, tileCount(mapDir, 0))
+        assertTileSize(mapDir, 1, 0, 0, 256, 256)
+        assertTileSize(mapDir, 1, 0, 1, 50, 256)
+        assertTileSize(mapDir, 1, 1, 0, 256, 30)
+        assertTileSize(mapDir, 1, 1, 1, 50, 30)
+        assertFalse(File(mapDir, PyramidBuilder.PROGRESS_FILE_NAME).exists())
+    }
+
+    @Test
+    fun resumeTest() {
+        val mapDir = tempFolder.newFolder()
+        for (row in 0..2) {
+            for (col in 0..2) {
+                writeTile(mapDir, 2, row, col, 256, 256)
+            }
+        }
+
+        /* The build of level 1 was interrupted after its first tile, and while writing the second */
+        val keptTile = File(mapDir, "1/0/0.jpg")
+        keptTile.parentFile.mkdirs()
+        keptTile.writeText("kept")
+        File(mapDir, "1/0/1.jpg.tmp").writeText("partial")
+        File(mapDir, PyramidBuilder.PROGRESS_FILE_NAME).writeText("1")
+
+        val builder = PyramidBuilder(mapDir, ".jpg")
+        assertEquals(listOf(1, 0), builder.missingLevels)
+        assertTrue(builder.build())
+
+        assertEquals("kept", keptTile.readText())
+        assertEquals(4, tileCount(mapDir, 1))
+        assertTileSize(mapDir, 1, 0, 1, 128, 256)
+        assertEquals(1, tileCount(mapDir, 0))
+        assertEquals(listOf<Int>(), builder.missingLevels)
+    }
+
+    private fun writeTile(mapDir: File, level: Int, row: Int, col: Int, width: Int, height: Int) {
+        val tile = File(mapDir, "$level/$row/$col.jpg")
+        tile.parentFile.mkdirs()
+        tile.writeText("tile")
+        ShadowBitmapFactory.provideWidthAndHeightHints(tile.path, width, height)
+    }
+
+    private fun tileCount(mapDir: File, level: Int): Int {
+        return File(mapDir, level.toString()).walk().count { it.isFile && it.name.endsWith(".jpg") }
+    }
+
+    private fun assertTileSize(mapDir: File, level: Int, row: Int, col: Int, width: Int, height: Int) {
+        val description = File(mapDir, "$level/$row/$col.jpg").readText()
+        assertTrue(description, description.startsWith("Bitmap ($width x $height)"))
+    }
+}
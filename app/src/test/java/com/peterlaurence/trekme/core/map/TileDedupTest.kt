@@ -0,0 +1,54 @@
+package com.peterlaurence.trekme.core.map
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class TileDedupTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun sharedTilesTest() {
+        val mapDir = tempFolder.newFolder()
+        val store = TileDedupStore(mapDir)
+        val sea = ByteArray(800) { 1 }
+        val land = ByteArray(800) { 2 }
+
+        /* The first occurrence of a tile is written as usual */
+        assertFalse(store.addTile(14, 10, 20, sea))
+        assertFalse(store.addTile(14, 10, 21, land))
+
+        /* Until it's written, its duplicates are written too */
+        assertFalse(store.addTile(14, 10, 19, sea))
+        store.onTileWritten(14, 10, 20)
+        store.onTileWritten(14, 10, 19)
+        assertTrue(store.addTile(14, 11, 20, sea))
+        assertTrue(store.addTile(14, 10, 22, sea))
+
+        /* Tiles aren't shared across levels, nor when they are too big */
+        assertFalse(store.addTile(15, 3, 4, sea))
+        store.onTileWritten(15, 3, 4)
+        val big = ByteArray(64 * 1024)
+        assertFalse(store.addTile(15, 3, 5, big))
+        store.onTileWritten(15, 3, 5)
+        assertFalse(store.addTile(15, 3, 6, big))
+        store.close()
+
+        val index = TileDedupIndex.load(mapDir)!!
+        assertEquals(2, index.size)
+        val canonical = index.canonicalOf(14, 11, 20)
+        assertEquals(canonical, index.canonicalOf(14, 10, 22))
+        assertEquals("14" + File.separator + "10" + File.separator + "20",
+                TileDedupIndex.canonicalPath(canonical))
+        assertEquals(-1, index.canonicalOf(14, 10, 20))
+        assertEquals(-1, index.canonicalOf(15, 3, 6))
+    }
+
+    @Test
+    fun noIndexTest() {
+        assertNull(TileDedupIndex.load(tempFolder.newFolder()))
+    }
+}
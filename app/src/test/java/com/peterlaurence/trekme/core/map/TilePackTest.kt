@@ -0,0 +1,85 @@
+package com.peterlaurence.trekme.core.map
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.ByteBuffer
+
+class TilePackTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun writeReadTest() {
+        val mapDir = tempFolder.newFolder()
+        TilePackWriter(mapDir).use {
+            it.write(1, 0, 1, byteArrayOf(1, 2))
+            it.write(0, 0, 0, byteArrayOf(3))
+            it.write(1, 1, 0, byteArrayOf(4, 5, 6))
+        }
+
+        /* Resume, and overwrite a tile */
+        TilePackWriter(mapDir).use {
+            it.write(1, 0, 1, byteArrayOf(7))
+            assertTrue(it.link(tileKey(1, 1, 1), tileKey(1, 0, 1)))
+        }
+
+        val tilePack = TilePack.open(mapDir)!!
+        assertEquals(4, tilePack.size)
+        assertEquals(listOf(0, 1), tilePack.levels)
+        assertArrayEquals(byteArrayOf(7), tilePack.getTile(1, 0, 1)!!.bytes())
+        assertArrayEquals(byteArrayOf(7), tilePack.getTile(1, 1, 1)!!.bytes())
+        assertArrayEquals(byteArrayOf(4, 5, 6), tilePack.getTile(1, 1, 0)!!.bytes())
+        assertArrayEquals(byteArrayOf(3), tilePack.firstTileOf(0)!!.bytes())
+        assertNull(tilePack.getTile(2, 0, 0))
+        assertEquals(Pair(2, 2), tilePack.sizeOf(1))
+    }
+
+    @Test
+    fun convertTest() {
+        val mapDir = tempFolder.newFolder()
+        val jpeg = byteArrayOf(0xFF.toByte(), 0xD8.toByte(), 0xFF.toByte(), 1)
+        val png = byteArrayOf(0x89.toByte(), 'P'.toByte(), 'N'.toByte(), 'G'.toByte(), 0, 0, 0, 0, 2)
+        writeTile(mapDir, "0/0/0.jpg", jpeg)
+        writeTile(mapDir, "1/0/0.jpg", jpeg)
+        writeTile(mapDir, "1/1/1.jpg", jpeg)
+        File(mapDir, "map.json").writeText("{}")
+
+        /* Not tiles of the map */
+        writeTile(mapDir, "1/1/0.jpg.tmp", jpeg)
+        writeTile(mapDir, "1/1/2.png", png)
+
+        /* A shared tile */
+        TileDedupStore(mapDir).apply {
+            addTile(1, 0, 0, jpeg)
+            onTileWritten(1, 0, 0)
+            addTile(1, 0, 1, jpeg)
+            close()
+        }
+
+        assertTrue(TilePackConverter.packFolders(mapDir, ".jpg"))
+        assertFalse(File(mapDir, "0").exists())
+        assertFalse(File(mapDir, TileDedupStore.INDEX_FILE_NAME).exists())
+        assertTrue(File(mapDir, "map.json").exists())
+        val tilePack = TilePack.open(mapDir)!!
+        assertEquals(4, tilePack.size)
+        assertArrayEquals(jpeg, tilePack.getTile(1, 0, 1)!!.bytes())
+        assertNull(tilePack.getTile(1, 1, 0))
+        assertNull(tilePack.getTile(1, 1, 2))
+
+        assertTrue(TilePackConverter.unpackToFolders(mapDir))
+        assertFalse(TilePack.exists(mapDir))
+        assertArrayEquals(jpeg, File(mapDir, "1/0/1.jpg").readBytes())
+        assertArrayEquals(jpeg, File(mapDir, "1/1/1.jpg").readBytes())
+    }
+
+    private fun writeTile(mapDir: File, path: String, data: ByteArray) {
+        val file = File(mapDir, path)
+        file.parentFile.mkdirs()
+        file.writeBytes(data)
+    }
+
+    private fun ByteBuffer.bytes() = ByteArray(remaining()).also { get(it) }
+}
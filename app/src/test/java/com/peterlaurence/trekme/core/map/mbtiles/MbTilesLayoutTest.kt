@@ -0,0 +1,30 @@
+package com.peterlaurence.trekme.core.map.mbtiles
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class MbTilesLayoutTest {
+    @Test
+    fun layoutTest() {
+        /* Two zoom levels, the second one missing its first column */
+        val layout = MbTilesLayout.of(listOf(
+                ZoomExtent(10, 530, 531, 360, 360),
+                ZoomExtent(11, 1061, 1063, 720, 721)))!!
+
+        assertEquals(MbTilesLayout(10, 11, 530, 360, 4, 2), layout)
+        assertEquals(MbTile(10, 531, 1023 - 360), layout.toMbTile(0, 0, 1))
+        assertEquals(MbTile(11, 1063, 2047 - 721), layout.toMbTile(1, 1, 3))
+        assertNull(MbTilesLayout.of(listOf()))
+    }
+
+    @Test
+    fun boundsTest() {
+        /* The whole world at zoom 0 */
+        val bounds = MbTilesLayout(0, 1, 0, 0, 2, 2).bounds()
+        assertEquals(-180.0, bounds[0], 1e-9)
+        assertEquals(-85.0511, bounds[1], 1e-4)
+        assertEquals(180.0, bounds[2], 1e-9)
+        assertEquals(85.0511, bounds[3], 1e-4)
+    }
+}
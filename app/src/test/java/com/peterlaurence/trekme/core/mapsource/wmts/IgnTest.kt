@@ -1,5 +1,6 @@
 package com.peterlaurence.trekme.core.mapsource.wmts
 
+import com.peterlaurence.trekme.core.mapsource.MapSource
 import org.junit.Assert
 import org.junit.Test
 
@@ -18,4 +19,85 @@ class IgnTest {
         Assert.assertEquals(132884, lastTile.col)
         Assert.assertEquals(90248, lastTile.row)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun tileIndexTest() {
+        val p1 = Point(275951.78, 6241946.52)
+        val p2 = Point(276951.78, 6240946.52)
+        val tileIndex = getTileIndex(16, 18, p1, p2)
+        val tiles = getTileSequenceAndCalibration(16, 18, p1, p2).tileSequence.toList()
+
+        /* Each tile has its own index */
+        Assert.assertEquals(tiles.size.toLong(), tileIndex.size)
+        Assert.assertEquals(tiles.size, tiles.map { tileIndex.indexOf(it) }.distinct().size)
+    }
+
+    @Test
+    fun resumeTest() {
+        val p1 = Point(275951.78, 6241946.52)
+        val p2 = Point(276951.78, 6240946.52)
+        val tileCount = getNumberOfTiles(17, 18, p1, p2)
+        val doneTiles = getTileSequenceAndCalibration(17, 18, p1, p2).tileSequence.take(10).toSet()
+
+        val remaining = getTileSequenceAndCalibration(17, 18, p1, p2) { it in doneTiles }.tileSequence.toList()
+        Assert.assertEquals(tileCount - 10, remaining.size.toLong())
+        Assert.assertTrue(remaining.none { it in doneTiles })
+    }
+
+    @Test
+    fun corridorTest() {
+        /* A diagonal track of about 14 km, with a buffer of 300 m */
+        val track = listOf(Point(275951.78, 6241946.52), Point(280951.78, 6236946.52), Point(285951.78, 6236946.52))
+        val corridor = Corridor(listOf(track), 300.0)
+        val spec = DownloadSpec.forCorridor(MapSource.IGN, "", 14, 17, corridor)
+
+        val boxTiles = getTileSequenceAndCalibration(14, 17, spec.point1, spec.point2).tileSequence.toSet()
+        val runs = getCorridorTileRuns(14, 17, corridor)
+        val tiles = runs.flatMap { run -> (0 until run.size).map { run.tileAt(it) } }
+
+        /* The corridor tiles are a fraction of the tiles of the bounding box, with the same indexes */
+        Assert.assertEquals(tiles.size.toLong(), getNumberOfTiles(spec))
+        Assert.assertEquals(tiles.size, tiles.toSet().size)
+        Assert.assertTrue(boxTiles.containsAll(tiles))
+        Assert.assertTrue(tiles.size < boxTiles.size / 2)
+
+        /* Each level covers the track */
+        for (level in 14..17) {
+            val tileSize = 2 * Math.abs(X0) / Math.pow(2.0, level.toDouble())
+            for (point in track) {
+                val col = Math.floor((point.X - X0) / tileSize).toInt()
+                val row = Math.floor((Y0 - point.Y) / tileSize).toInt()
+                Assert.assertTrue(tiles.any { it.level == level && it.col == col && it.row == row })
+            }
+        }
+
+        /* The map has the size of the bounding box */
+        val (colCount, rowCount) = getMapSizeInTiles(14, 17, spec.point1, spec.point2)
+        Assert.assertEquals(boxTiles.count { it.level == 17 }, colCount * rowCount)
+    }
+
+    @Test
+    fun priorityTest() {
+        val p1 = Point(275951.78, 6241946.52)
+        val p2 = Point(276951.78, 6240946.52)
+        val focus = Point(276451.78, 6241446.52)
+        val runs = getTileRuns(DownloadSpec(MapSource.IGN, "", 16, 18, p1, p2, focus = focus))
+        val tiles = runs.flatMap { run -> (0 until run.size).map { run.tileAt(it) } }
+
+        /* Same tiles, levels still in increasing order */
+        val expected = getTileSequenceAndCalibration(16, 18, p1, p2).tileSequence.toList()
+        Assert.assertEquals(expected.toSet(), tiles.toSet())
+        Assert.assertEquals(tiles.size, expected.size)
+        Assert.assertEquals(tiles.map { it.level }.sorted(), tiles.map { it.level })
+
+        /* Within a level, tiles get farther from the focus */
+        val tileSize = 2 * Math.abs(X0) / Math.pow(2.0, 18.0)
+        val focusCol = Math.floor((focus.X - X0) / tileSize).toInt()
+        val focusRow = Math.floor((Y0 - focus.Y) / tileSize).toInt()
+        val rings = tiles.filter { it.level == 18 }.map {
+            Math.max(Math.abs(it.col - focusCol), Math.abs(it.row - focusRow))
+        }
+        Assert.assertEquals(0, rings.first())
+        Assert.assertEquals(rings.sorted(), rings)
+    }
+}
@@ -0,0 +1,78 @@
+package com.peterlaurence.trekme.core.providers.bitmap
+
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TileDiskCacheTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun lruTest() {
+        val dir = tempFolder.newFolder()
+        val cache = TileDiskCache(dir, 3000)
+        val key1 = TileDiskCache.key("IGN", "GEOGRAPHICALGRIDSYSTEMS.MAPS", 15, 1, 1)
+        val key2 = TileDiskCache.key("IGN", "GEOGRAPHICALGRIDSYSTEMS.MAPS", 15, 1, 2)
+        val key3 = TileDiskCache.key("OPEN_STREET_MAP", "", 15, 1, 1)
+        assertNotEquals(key1, key3)
+
+        cache.put(key1, ByteArray(1000) { 1 })
+        cache.put(key2, ByteArray(1000) { 2 })
+        assertNotNull(cache.get(key1))
+
+        /* The least recently used tile goes away */
+        cache.put(key3, ByteArray(1500) { 3 })
+        assertNull(cache.get(key2))
+        assertEquals(1, cache.get(key1)!![0].toInt())
+        assertEquals(2, cache.hitCount)
+
+        /* Tiles are still there on restart */
+        val reloaded = TileDiskCache(dir, 3000)
+        assertEquals(3, reloaded.get(key3)!![0].toInt())
+        assertNull(reloaded.get(key2))
+    }
+
+    @Test
+    fun coalescingTest() {
+        val cache = TileDiskCache(tempFolder.newFolder(), 10_000)
+        val fetchCount = AtomicInteger()
+        val fetchStarted = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val fetch = {
+            fetchCount.incrementAndGet()
+            fetchStarted.countDown()
+            release.await()
+            ByteArray(100) { 7 }
+        }
+
+        val executor = Executors.newFixedThreadPool(2)
+        val first = executor.submit<ByteArray?> { cache.getOrFetch("tile", fetch) }
+        fetchStarted.await()
+        val second = executor.submit<ByteArray?> { cache.getOrFetch("tile", fetch) }
+        while (cache.coalescedCount == 0) Thread.sleep(5)
+        release.countDown()
+
+        assertEquals(7, first.get(5, TimeUnit.SECONDS)!![0].toInt())
+        assertEquals(7, second.get(5, TimeUnit.SECONDS)!![0].toInt())
+        assertEquals(1, fetchCount.get())
+        executor.shutdown()
+
+        /* Then the tile comes from the disk */
+        assertNotNull(cache.getOrFetch("tile") { null })
+        assertEquals(1, cache.missCount)
+        assertEquals(0.5f, cache.hitRatio)
+    }
+
+    @Test
+    fun failedFetchTest() {
+        val cache = TileDiskCache(tempFolder.newFolder(), 10_000)
+        assertNull(cache.getOrFetch("tile") { null })
+        assertNull(cache.get("tile"))
+    }
+}
@@ -0,0 +1,40 @@
+package com.peterlaurence.trekme.core.providers.http
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+
+class RateLimiterTest {
+    @Test
+    fun pacingTest() {
+        val rateLimiter = TokenBucketRateLimiter(100.0, burst = 10)
+
+        /* The burst goes right away */
+        var start = System.nanoTime()
+        repeat(10) { assertTrue(rateLimiter.acquire()) }
+        assertTrue(System.nanoTime() - start < 50_000_000)
+
+        /* Then requests are spaced by 10 ms */
+        start = System.nanoTime()
+        repeat(20) { rateLimiter.acquire() }
+        val elapsedMs = (System.nanoTime() - start) / 1_000_000
+        assertTrue(elapsedMs in 180..400)
+    }
+
+    @Test
+    fun dailyBudgetTest() {
+        val file = File.createTempFile("budget", null)
+        file.delete()
+        val budget = DailyBudget(file, 100)
+        val rateLimiter = TokenBucketRateLimiter(1_000_000.0, budget = budget)
+        repeat(60) { assertTrue(rateLimiter.acquire()) }
+        budget.save()
+
+        /* The budget persists */
+        val reloaded = DailyBudget(file, 100)
+        assertEquals(40, reloaded.remaining)
+        repeat(40) { assertTrue(reloaded.consume()) }
+        assertFalse(reloaded.consume())
+        file.delete()
+    }
+}
@@ -0,0 +1,115 @@
+package com.peterlaurence.trekme.core.providers.http
+
+import com.sun.net.httpserver.HttpServer
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.util.*
+import kotlin.concurrent.thread
+
+/**
+ * Tests the [TileHttpEngine] against a local HTTP server.
+ */
+class TileHttpEngineTest {
+    private lateinit var server: HttpServer
+    private val tile = ByteArray(20_000) { (it % 251).toByte() }
+    private val clientPorts = Collections.synchronizedSet(mutableSetOf<Int>())
+    private var lastAuthHeader: String? = null
+
+    @Before
+    fun startServer() {
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/tile") { exchange ->
+            clientPorts.add(exchange.remoteAddress.port)
+            lastAuthHeader = exchange.requestHeaders.getFirst("Authorization")
+            exchange.sendResponseHeaders(200, tile.size.toLong())
+            exchange.responseBody.use { it.write(tile) }
+        }
+        server.createContext("/chunked") { exchange ->
+            /* A length of 0 means chunked encoding */
+            exchange.sendResponseHeaders(200, 0)
+            exchange.responseBody.use { it.write(tile) }
+        }
+        server.createContext("/missing") { exchange ->
+            val body = "<error/>".toByteArray()
+            exchange.sendResponseHeaders(404, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.start()
+    }
+
+    @After
+    fun stopServer() {
+        server.stop(0)
+    }
+
+    private fun url(path: String) = "http://127.0.0.1:${server.address.port}$path"
+
+    @Test
+    fun fetchTest() {
+        val engine = TileHttpEngine()
+        val response = engine.fetch(url("/tile"), mapOf("Authorization" to "Basic abc"))
+
+        assertEquals(200, response.code)
+        assertArrayEquals(tile, response.data)
+        assertEquals("Basic abc", lastAuthHeader)
+    }
+
+    @Test
+    fun chunkedTest() {
+        val engine = TileHttpEngine()
+
+        /* The same thread buffer is reused, each response must still be correct */
+        repeat(3) {
+            assertArrayEquals(tile, engine.fetch(url("/chunked")).data)
+        }
+    }
+
+    @Test
+    fun bogusLengthTest() {
+        /* A server which announces far more than it sends */
+        val socket = ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))
+        thread {
+            socket.accept().use { client ->
+                val input = client.getInputStream().bufferedReader()
+                while (!input.readLine().isNullOrEmpty()) {
+                    // skip the request
+                }
+                client.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2000000000\r\n\r\n".toByteArray() + tile)
+            }
+        }
+
+        val response = TileHttpEngine().fetch("http://127.0.0.1:${socket.localPort}/tile")
+        socket.close()
+        assertFalse(response.isSuccessful)
+        assertNotNull(response.error)
+    }
+
+    @Test
+    fun errorTest() {
+        val engine = TileHttpEngine()
+        val response = engine.fetch(url("/missing"))
+        assertEquals(404, response.code)
+        assertFalse(response.isSuccessful)
+
+        val unreachable = engine.fetch("http://127.0.0.1:1/tile")
+        assertEquals(TileResponse.NO_RESPONSE, unreachable.code)
+        assertNotNull(unreachable.error)
+    }
+
+    @Test
+    fun connectionReuseTest() {
+        val engine = TileHttpEngine()
+        repeat(20) {
+            engine.fetch(url("/missing"))
+            engine.fetch(url("/tile"))
+        }
+
+        /* Sequential requests, including failed ones, should all go through the same connection */
+        assertEquals(1, clientPorts.size)
+    }
+}
@@ -0,0 +1,140 @@
+package com.peterlaurence.trekme.service
+
+import com.peterlaurence.trekme.BuildConfig
+import com.peterlaurence.trekme.core.download.*
+import com.peterlaurence.trekme.core.map.TileDedupStore
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.wmts.DownloadSpec
+import com.peterlaurence.trekme.core.mapsource.wmts.Point
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.getTileRuns
+import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
+import com.peterlaurence.trekme.core.providers.http.TileHttpEngine
+import com.peterlaurence.trekme.core.providers.http.TileResponse
+import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilder
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * End-to-end benchmark of the download pipeline ([launchDownloadTask], [TileSpace], the tile
+ * writer of the service and the http engine), against a [MockWmtsServer]. Tiles are written to a
+ * temporary folder.
+ *
+ * Each scenario prints the throughput, the tile latency and the CPU time, so that changes of the
+ * download engine can be compared offline.
+ * It takes a while, so it only runs when asked for: `./gradlew testDebugUnitTest -Pbenchmark`.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class DownloadBenchmark {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    /* About 250 tiles from level 14 to 16 */
+    private val spec = DownloadSpec(MapSource.OPEN_STREET_MAP, "", 14, 16,
+            Point(275951.78, 6241946.52), Point(279951.78, 6238946.52))
+
+    @Before
+    fun onlyOnDemand() {
+        assumeTrue(System.getProperty("benchmark") != null)
+    }
+
+    @Test
+    fun nominal() {
+        val result = runScenario("nominal", MockWmtsServer(latencyMs = 20))
+        assertEquals(result.expectedTiles, result.writtenTiles)
+        assertTrue(result.missingTiles.isEmpty())
+    }
+
+    @Test
+    fun slowBandwidth() {
+        val result = runScenario("slow bandwidth", MockWmtsServer(format = "png", latencyMs = 20,
+                bandwidthBytesPerSecond = 2_000_000))
+        assertEquals(result.expectedTiles, result.writtenTiles)
+    }
+
+    @Test
+    fun errorsAndRateLimit() {
+        val result = runScenario("errors and rate limit", MockWmtsServer(latencyMs = 20,
+                errorRate = 0.05, maxRequestsPerSecond = 200))
+
+        /* Failed tiles are retried */
+        assertEquals(result.expectedTiles, result.writtenTiles)
+        assertTrue(result.missingTiles.isEmpty())
+    }
+
+    private class Result(val expectedTiles: Int, val writtenTiles: Int, val missingTiles: List<FailedTile>)
+
+    private fun runScenario(name: String, server: MockWmtsServer): Result {
+        server.start()
+        val latency = LatencyHistogram()
+        val bytes = AtomicLong()
+        val urlTileBuilder = object : UrlTileBuilder {
+            override fun build(level: Int, row: Int, col: Int) = "${server.baseUrl}/$level/$row/$col"
+        }
+        val providerFactory = {
+            object : GenericBitmapProvider(urlTileBuilder) {
+                override fun fetch(level: Int, row: Int, col: Int, paced: Boolean): TileResponse {
+                    val start = System.nanoTime()
+                    return super.fetch(level, row, col, paced).also {
+                        latency.record(System.nanoTime() - start)
+                        bytes.addAndGet(it.data?.size?.toLong() ?: 0)
+                    }
+                }
+            }
+        }
+
+        /* The same writer as a download of the service */
+        val destDir = tempFolder.newFolder()
+        val tileRuns = getTileRuns(spec)
+        val dedupStore = TileDedupStore(destDir)
+        val written = ConcurrentHashMap.newKeySet<Tile>()
+        val tileWriter = makeTileWriter(destDir, tileRuns, dedupStore) { written.add(it) }
+
+        val tileSpace = TileSpace(tileRuns)
+        val progressAggregator = ProgressAggregator(tileSpace.size) {}
+        val done = CountDownLatch(1)
+        var missingTiles = listOf<FailedTile>()
+
+        val osBean = ManagementFactory.getOperatingSystemMXBean() as com.sun.management.OperatingSystemMXBean
+        val cpuStart = osBean.processCpuTime
+        val start = System.nanoTime()
+        DownloadService.started = true
+        try {
+            /* The concurrency of the source, within the connections of the http engine */
+            launchDownloadTask(spec, tileSpace, tileWriter, progressAggregator,
+                    ConcurrencyController.forSource(spec.source, TileHttpEngine.shared.config.maxConnectionsPerHost),
+                    providerFactory) {
+                dedupStore.close()
+                missingTiles = it
+                done.countDown()
+            }
+            assertTrue(done.await(2, TimeUnit.MINUTES))
+        } finally {
+            DownloadService.started = false
+            server.stop()
+        }
+        val seconds = (System.nanoTime() - start) / 1e9
+        val cpuSeconds = (osBean.processCpuTime - cpuStart) / 1e9
+
+        val snapshot = latency.snapshot()
+        println(String.format("%s: %d tiles in %.2f s, %.0f tiles/s, %.0f KB/s, p50 %.1f ms, p99 %.1f ms, CPU %.2f s, %d requests",
+                name, written.size, seconds, written.size / seconds, bytes.get() / 1024 / seconds,
+                snapshot.p50Ms, snapshot.p99Ms, cpuSeconds, server.requestCount.get()))
+
+        return Result(tileSpace.size.toInt(), written.size, missingTiles)
+    }
+}
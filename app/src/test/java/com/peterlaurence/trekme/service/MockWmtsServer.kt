@@ -0,0 +1,110 @@
+package com.peterlaurence.trekme.service
+
+import com.sun.net.httpserver.HttpServer
+import java.awt.image.BufferedImage
+import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import javax.imageio.ImageIO
+
+/**
+ * An in-process stand-in for a WMTS server, which serves the same synthetic tile for any
+ * "/level/row/col" request.
+ *
+ * @param latencyMs The delay before the response is sent
+ * @param bandwidthBytesPerSecond The rate at which the body of each response is sent, or 0 for no
+ * limit
+ * @param errorRate The fraction of requests which get an HTTP 500
+ * @param maxRequestsPerSecond Above this rate, requests get an HTTP 429. 0 for no limit.
+ */
+class MockWmtsServer(private val format: String = "jpg", private val latencyMs: Long = 0,
+                     private val bandwidthBytesPerSecond: Long = 0, private val errorRate: Double = 0.0,
+                     private val maxRequestsPerSecond: Int = 0) {
+    private val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+    private val executor: ExecutorService = Executors.newCachedThreadPool()
+    private val random = Random(0)
+    private val tile = makeTile(format)
+
+    private val secondStart = AtomicLong(0)
+    private val requestsInSecond = AtomicLong(0)
+
+    val requestCount = AtomicLong(0)
+
+    val baseUrl: String
+        get() = "http://127.0.0.1:${server.address.port}"
+
+    init {
+        server.executor = executor
+        server.createContext("/") { exchange ->
+            requestCount.incrementAndGet()
+            exchange.requestBody.close()
+            if (latencyMs > 0) Thread.sleep(latencyMs)
+
+            val code = when {
+                isRateLimited() -> 429
+                synchronized(random) { random.nextDouble() } < errorRate -> 500
+                else -> 200
+            }
+            if (code != 200) {
+                exchange.sendResponseHeaders(code, -1)
+                exchange.close()
+                return@createContext
+            }
+
+            exchange.responseHeaders.add("Content-Type", if (format == "png") "image/png" else "image/jpeg")
+            exchange.sendResponseHeaders(200, tile.size.toLong())
+            exchange.responseBody.use { out ->
+                if (bandwidthBytesPerSecond <= 0) {
+                    out.write(tile)
+                } else {
+                    /* Send chunks of 4 KB at the configured rate */
+                    val chunkSize = 4096
+                    var offset = 0
+                    while (offset < tile.size) {
+                        val count = Math.min(chunkSize, tile.size - offset)
+                        out.write(tile, offset, count)
+                        out.flush()
+                        offset += count
+                        Thread.sleep(count * 1000L / bandwidthBytesPerSecond)
+                    }
+                }
+            }
+        }
+    }
+
+    fun start() = server.start()
+
+    fun stop() {
+        server.stop(0)
+        executor.shutdownNow()
+    }
+
+    private fun isRateLimited(): Boolean {
+        if (maxRequestsPerSecond <= 0) return false
+        val second = System.currentTimeMillis() / 1000
+        if (secondStart.getAndSet(second) != second) requestsInSecond.set(0)
+        return requestsInSecond.incrementAndGet() > maxRequestsPerSecond
+    }
+
+    companion object {
+        /**
+         * A 256x256 noisy image, so its size is close to the one of a real tile.
+         */
+        private fun makeTile(format: String): ByteArray {
+            val random = Random(42)
+            val image = BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB)
+            for (x in 0 until 256) {
+                for (y in 0 until 256) {
+                    val shade = (x + y) / 4 + random.nextInt(32)
+                    image.setRGB(x, y, (shade shl 16) or ((shade / 2) shl 8) or 64)
+                }
+            }
+            val out = ByteArrayOutputStream()
+            ImageIO.write(image, if (format == "png") "png" else "jpg", out)
+            return out.toByteArray()
+        }
+    }
+}